@@ -4,6 +4,7 @@
 
 package plugins.MDNSDiscovery;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Iterator;
@@ -44,6 +45,8 @@ public class MDNSDiscovery implements FredPlugin, FredPluginHTTP, FredPluginReal
 	private LinkedList ourAdvertisedServices, ourDisabledServices, foundNodes;
 	private PluginRespirator pr;
 	private static final long version = 2;
+	/** Where the cache of JmDNS is kept between runs, so that the nodes found before show up at once */
+	private static final String cacheSnapshotFile = "MDNSDiscovery.cache";
 	
 	/**
 	 * Called upon plugin unloading : we unregister advertised services
@@ -71,7 +74,7 @@ public class MDNSDiscovery implements FredPlugin, FredPluginHTTP, FredPluginReal
 		
 		try{
 			// Create the multicast listener
-	        jmdns = JmDNS.create();
+	        jmdns = JmDNS.create(new File(cacheSnapshotFile));
 
 			final String address = "server -=" + pr.getNode().getMyName() + "=-";
 			
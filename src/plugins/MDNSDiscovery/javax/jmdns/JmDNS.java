@@ -5,6 +5,7 @@
 
 package plugins.MDNSDiscovery.javax.jmdns;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 
@@ -40,6 +41,26 @@ public abstract class JmDNS
     {
         return new JmDNSImpl(addr);
     }
+
+    /**
+     * Create an instance of JmDNS that saves its cache to a file when it is
+     * closed, and periodically while it runs. The records saved by a
+     * previous instance that have not expired are available immediately, and
+     * are revalidated in the background.
+     */
+    public static JmDNS create(File snapshot) throws IOException
+    {
+        return new JmDNSImpl(snapshot);
+    }
+
+    /**
+     * Create an instance of JmDNS bound to a specific network interface,
+     * that saves its cache to a file. See create(File).
+     */
+    public static JmDNS create(InetAddress addr, File snapshot) throws IOException
+    {
+        return new JmDNSImpl(addr, snapshot);
+    }
     
     /**
      * Return the HostName associated with this JmDNS instance.
@@ -0,0 +1,196 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads and writes snapshots of the cache, so that a restarted JmDNS knows
+ * the records it knew before, without waiting for them to be announced
+ * again.
+ * <p/>
+ * A snapshot starts with a magic number and a version, followed by frames.
+ * A frame holds the time it was written, and a DNS response message in wire
+ * format whose answers are the records. The TTLs in the message are
+ * relative to the time of the frame, so the absolute expiry time of a
+ * record is the time of its frame plus its TTL.
+ * <p/>
+ * A snapshot is written to a temporary file which then replaces the
+ * previous snapshot, so that a crash while writing leaves the previous
+ * snapshot intact.
+ */
+final class CacheSnapshot
+{
+    private static final int MAGIC = 0x4A6D444E;
+    private static final int VERSION = 1;
+
+    private CacheSnapshot()
+    {
+        // static only
+    }
+
+    /**
+     * Write the records of a cache that have not expired to a file.
+     *
+     * @return the number of records written.
+     */
+    static int write(DNSCache cache, File file, long now) throws IOException
+    {
+        final File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            DNSOutgoing msg = newMessage();
+            for (final Iterator i = cache.iterator(); i.hasNext();)
+            {
+                for (DNSCache.CacheNode n = (DNSCache.CacheNode) i.next(); n != null; n = n.next())
+                {
+                    final DNSRecord rec = (DNSRecord) n.getValue();
+                    if (rec.getRemainingTTL(now) <= 0)
+                    {
+                        continue;
+                    }
+                    if (!add(msg, rec, now))
+                    {
+                        // A message that overflowed is not written to again
+                        if (!msg.isEmpty())
+                        {
+                            writeFrame(out, msg, now);
+                        }
+                        msg = newMessage();
+                        if (!add(msg, rec, now))
+                        {
+                            // too large for a message of its own
+                            msg = newMessage();
+                            continue;
+                        }
+                    }
+                    count++;
+                }
+            }
+            if (!msg.isEmpty())
+            {
+                writeFrame(out, msg, now);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+        {
+            // Some platforms do not replace an existing file
+            file.delete();
+            if (!tmp.renameTo(file))
+            {
+                throw new IOException("can not replace " + file);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read a snapshot, and add the records that have not expired since to a
+     * cache. Records that are already in the cache are left alone.
+     *
+     * @return the records added to the cache.
+     */
+    static List read(File file, DNSCache cache, long now) throws IOException
+    {
+        final List result = new ArrayList();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            {
+                throw new IOException("not a cache snapshot: " + file);
+            }
+            while (true)
+            {
+                final long time;
+                try
+                {
+                    time = in.readLong();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                final int length = in.readInt();
+                if ((length < 12) || (length > DNSConstants.MAX_MSG_ABSOLUTE))
+                {
+                    throw new IOException("bad frame length: " + length);
+                }
+                final byte[] data = new byte[length];
+                in.readFully(data);
+                final DNSIncoming msg = new DNSIncoming(ByteBuffer.wrap(data), null, 0);
+                for (final Iterator i = msg.answers.iterator(); i.hasNext();)
+                {
+                    final DNSRecord rec = (DNSRecord) i.next();
+                    final long remaining = time + rec.getTtl() * 1000L - now;
+                    if (remaining < 1000)
+                    {
+                        continue;
+                    }
+                    rec.setTtl((int) (remaining / 1000));
+                    if (cache.get(rec) == null)
+                    {
+                        cache.add(rec);
+                        result.add(rec);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return result;
+    }
+
+    private static DNSOutgoing newMessage()
+    {
+        return new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+    }
+
+    /**
+     * Add a record to a message. Returns false if the message is full.
+     */
+    private static boolean add(DNSOutgoing msg, DNSRecord rec, long now)
+    {
+        try
+        {
+            msg.addAnswer(rec, now);
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, DNSOutgoing msg, long now) throws IOException
+    {
+        msg.finish();
+        out.writeLong(now);
+        out.writeInt(msg.off);
+        out.write(msg.data, 0, msg.off);
+    }
+}
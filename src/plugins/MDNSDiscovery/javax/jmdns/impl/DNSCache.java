@@ -5,8 +5,11 @@
 package plugins.MDNSDiscovery.javax.jmdns.impl;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -35,6 +38,29 @@ import java.util.logging.Logger;
  * }
  * </pre>
  * 
+ * <p/> The cache is safe for concurrent use without locking. The nodes are
+ * immutable: adding or removing an entry replaces the list of its name with
+ * a new one, with a compare-and-set on the table. Readers never block, and
+ * always see a consistent list, although it may no longer be current.
+ * Iterating over the cache does not copy it, and does not stop others from
+ * changing it.
+ * 
+ * <p/> Besides the table by name, the cache keeps indexes by exact name, type
+ * and class, by type, and of SRV records by target host. They hold lists of
+ * the same shape, and are updated the same way, after the table by name.
+ * 
+ * <p/> The records in the cache are also kept in a heap ordered by their
+ * expiration time, so that expired records can be found without looking at
+ * the others. See pollExpired().
+ * 
+ * <p/> The cache is bounded by a number of entries and by an approximate
+ * number of bytes. When either limit is exceeded, records are evicted in
+ * CLOCK order: a hand sweeps over the table, a record that was looked up
+ * with get() since the hand last passed it gets another round, the others
+ * are evicted. Records the EvictionGuard protects are never evicted, so the
+ * limits may be exceeded if all records are protected. Evicted records are
+ * dropped silently, as if they had never been received.
+ * 
  * @version %I%, %G%
  * @author Arthur van Hoff, Werner Randelshofer, Rick Blair
  */
@@ -55,28 +81,117 @@ public class DNSCache
     /**
      * The number of DNSEntry's in the cache.
      */
-    private int size;
+    private final AtomicInteger size = new AtomicInteger();
 
     /**
      * The hashtable used internally to store the entries of the cache. Keys are
-     * instances of String. The String contains an unqualified service name.
-     * Values are linked lists of CacheNode instances.
+     * the canonical (lower case) DNSName's of the entries, so that entries
+     * whose names only differ in case share a list. Values are linked lists
+     * of CacheNode instances.
+     */
+    private final ConcurrentHashMap hashtable;
+
+    /**
+     * Index by exact name, type and class. Keys are instances of
+     * DNSCache.Key.
+     */
+    private final ConcurrentHashMap byKey;
+
+    /**
+     * Index by type. Keys are Integer's holding the type.
      */
-    private final HashMap hashtable;
+    private final ConcurrentHashMap byType = new ConcurrentHashMap();
+
+    /**
+     * Index of the SRV records by target host. Keys are the canonical
+     * DNSName's of the targets.
+     */
+    private final ConcurrentHashMap bySrvTarget = new ConcurrentHashMap();
+
+    /**
+     * Guards the expiry heap.
+     */
+    private final Object expiryLock = new Object();
+
+    /**
+     * The expiry heap: a binary min-heap of records keyed by the expiration
+     * time they were pushed with. A record whose expiration time changed
+     * since may have stale entries in the heap, these are skipped when they
+     * come up. So may a record that was removed, and the heap is compacted
+     * when there are more stale entries than live ones, so that it stays
+     * within the limits of the cache.
+     */
+    private long[] expiryTimes = new long[64];
+    private DNSRecord[] expiryRecords = new DNSRecord[64];
+    private int expirySize = 0;
+    /**
+     * The number of records in the heap, that is with a scheduled
+     * expiration.
+     */
+    private int expiryLive = 0;
+
+    /**
+     * Approximate memory used by an entry besides its name and data: the
+     * record itself, its nodes in the table and the indexes, and its slot in
+     * the expiry heap.
+     */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    /**
+     * The approximate number of bytes used by the entries in the cache.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile int maxEntries = DNSConstants.CACHE_MAX_ENTRIES;
+    private volatile long maxBytes = DNSConstants.CACHE_MAX_BYTES;
+
+    private volatile EvictionGuard guard;
+
+    /**
+     * Guards the clock hand. Only one thread evicts at a time.
+     */
+    private final Object evictionLock = new Object();
+
+    /**
+     * The clock hand: an iterator over the lists of the table, restarted
+     * when it runs out.
+     */
+    private Iterator hand;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * Decides which records must not be evicted.
+     */
+    public interface EvictionGuard
+    {
+        /**
+         * True if a record is in use, and must stay in the cache until it
+         * expires.
+         */
+        boolean isProtected(DNSRecord rec);
+    }
 
     /**
      * Cache nodes are used to implement storage of multiple DNSEntry's of the
-     * same name in the cache.
+     * same name in the cache. Nodes are immutable, so a list can be read
+     * while it is being replaced.
      */
     public static class CacheNode
     {
         private static Logger logger = Logger.getLogger(CacheNode.class.getName());
         private final DNSEntry value;
-        private CacheNode next;
+        private final CacheNode next;
 
         public CacheNode(DNSEntry value)
+        {
+            this(value, null);
+        }
+
+        CacheNode(DNSEntry value, CacheNode next)
         {
             this.value = value;
+            this.next = next;
         }
 
         public CacheNode next()
@@ -95,89 +210,491 @@ public class DNSCache
      */
     public DNSCache(final int size)
     {
-        hashtable = new HashMap(size);
+        hashtable = new ConcurrentHashMap(size);
+        byKey = new ConcurrentHashMap(size);
     }
 
     /**
      * Clears the cache.
      */
-    public synchronized void clear()
+    public void clear()
     {
-        hashtable.clear();
-        size = 0;
+        synchronized (expiryLock)
+        {
+            for (int i = 0; i < expirySize; i++)
+            {
+                expiryRecords[i].scheduledExpiration = 0;
+                expiryRecords[i] = null;
+            }
+            expirySize = 0;
+            expiryLive = 0;
+        }
+        for (final Iterator i = hashtable.keySet().iterator(); i.hasNext();)
+        {
+            final CacheNode node = (CacheNode) hashtable.remove(i.next());
+            for (CacheNode n = node; n != null; n = n.next)
+            {
+                size.decrementAndGet();
+                bytes.addAndGet(-sizeOf(n.value));
+                unindex(n.value);
+            }
+        }
     }
 
     /**
      * Adds an entry to the table.
      */
-    public synchronized void add(final DNSEntry entry)
+    public void add(final DNSEntry entry)
     {
         // logger.log("DNSCache.add("+entry.getName()+")");
-        final CacheNode newValue = new CacheNode(entry);
-        final CacheNode node = (CacheNode) hashtable.get(entry.getName());
-        if (node == null)
+        link(hashtable, entry.getDNSName().canonical(), entry);
+        size.incrementAndGet();
+        bytes.addAndGet(sizeOf(entry));
+        link(byKey, new Key(entry.getDNSName(), entry.type, entry.clazz), entry);
+        link(byType, Integer.valueOf(entry.type), entry);
+        if (entry instanceof DNSRecord.Service)
+        {
+            link(bySrvTarget, ((DNSRecord.Service) entry).server.canonical(), entry);
+        }
+        if (entry instanceof DNSRecord)
         {
-            hashtable.put(entry.getName(), newValue);
+            reschedule((DNSRecord) entry);
         }
-        else
+        if (isFull())
         {
-            newValue.next = node.next;
-            node.next = newValue;
+            evict();
         }
-        size++;
     }
 
     /**
      * Remove a specific entry from the table. Returns true if the entry was
      * found.
      */
-    public synchronized boolean remove(DNSEntry entry)
+    public boolean remove(DNSEntry entry)
     {
-        CacheNode node = (CacheNode) hashtable.get(entry.getName());
-        if (node != null)
+        if (!unlink(hashtable, entry.getDNSName().canonical(), entry))
         {
-            if (node.value == entry)
+            return false;
+        }
+        size.decrementAndGet();
+        bytes.addAndGet(-sizeOf(entry));
+        unindex(entry);
+        if (entry instanceof DNSRecord)
+        {
+            synchronized (expiryLock)
             {
-                if (node.next == null)
+                // Makes its heap entries stale
+                final DNSRecord rec = (DNSRecord) entry;
+                if (rec.scheduledExpiration != 0)
                 {
-                    hashtable.remove(entry.getName());
+                    rec.scheduledExpiration = 0;
+                    expiryLive--;
+                    compactIfStale();
                 }
-                else
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the limits of the cache, and evicts records until the cache is
+     * within them.
+     *
+     * @param maxEntries
+     *      the maximum number of entries.
+     * @param maxBytes
+     *      the maximum approximate number of bytes used by the entries.
+     */
+    public void setLimits(int maxEntries, long maxBytes)
+    {
+        if (maxEntries <= 0 || maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("cache limits must be positive: " + maxEntries + ", "
+                    + maxBytes);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        if (isFull())
+        {
+            evict();
+        }
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the guard protecting records from eviction, or null to let all
+     * records be evicted.
+     */
+    public void setEvictionGuard(EvictionGuard guard)
+    {
+        this.guard = guard;
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the entries in the
+     * cache.
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the number of records evicted because the cache was full.
+     */
+    public long getEvictedCount()
+    {
+        return evictedCount.get();
+    }
+
+    private boolean isFull()
+    {
+        return (size.get() > maxEntries) || (bytes.get() > maxBytes);
+    }
+
+    /**
+     * Returns the approximate number of bytes used by an entry.
+     */
+    private static int sizeOf(DNSEntry entry)
+    {
+        int result = ENTRY_OVERHEAD + 2 * entry.getName().length();
+        if (entry instanceof DNSRecord)
+        {
+            result += ((DNSRecord) entry).getDataSize();
+        }
+        return result;
+    }
+
+    /**
+     * Evicts records until the cache is within its limits. The hand goes
+     * around the table at most twice: once to clear the reference bits, and
+     * once to evict. If the cache is still full after that, the remaining
+     * records are protected.
+     */
+    private void evict()
+    {
+        synchronized (evictionLock)
+        {
+            for (int steps = 2 * hashtable.size() + 1; (steps > 0) && isFull(); steps--)
+            {
+                if ((hand == null) || !hand.hasNext())
+                {
+                    hand = hashtable.values().iterator();
+                    if (!hand.hasNext())
+                    {
+                        return;
+                    }
+                }
+                for (CacheNode n = (CacheNode) hand.next(); (n != null) && isFull(); n = n.next)
                 {
-                    hashtable.put(entry.getName(), node.next);
+                    if (!(n.value instanceof DNSRecord))
+                    {
+                        continue;
+                    }
+                    final DNSRecord rec = (DNSRecord) n.value;
+                    if (rec.referenced)
+                    {
+                        rec.referenced = false;
+                        continue;
+                    }
+                    final EvictionGuard guard = this.guard;
+                    if ((guard != null) && guard.isProtected(rec))
+                    {
+                        continue;
+                    }
+                    if (remove(rec))
+                    {
+                        evictedCount.incrementAndGet();
+                    }
                 }
-                size--;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the indexes.
+     */
+    private void unindex(DNSEntry entry)
+    {
+        unlink(byKey, new Key(entry.getDNSName(), entry.type, entry.clazz), entry);
+        unlink(byType, Integer.valueOf(entry.type), entry);
+        if (entry instanceof DNSRecord.Service)
+        {
+            unlink(bySrvTarget, ((DNSRecord.Service) entry).server.canonical(), entry);
+        }
+    }
+
+    /**
+     * Adds an entry to the list of a key in a table.
+     */
+    private static void link(ConcurrentHashMap table, Object key, DNSEntry entry)
+    {
+        while (true)
+        {
+            final CacheNode node = (CacheNode) table.get(key);
+            final CacheNode newValue = new CacheNode(entry, node);
+            if ((node == null) ? (table.putIfAbsent(key, newValue) == null) : table.replace(key, node,
+                    newValue))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the list of a key in a table. Returns true if
+     * the entry was found.
+     */
+    private static boolean unlink(ConcurrentHashMap table, Object key, DNSEntry entry)
+    {
+        while (true)
+        {
+            final CacheNode node = (CacheNode) table.get(key);
+            final CacheNode newValue = without(node, entry);
+            if (newValue == node)
+            {
+                return false;
+            }
+            if ((newValue == null) ? table.remove(key, node) : table.replace(key, node, newValue))
+            {
                 return true;
             }
+        }
+    }
 
-            CacheNode previous = node;
-            node = node.next;
-            while (node != null)
+    /**
+     * Must be called when the TTL of a record in the cache has been changed,
+     * so that it expires on time. A record whose TTL was extended does not
+     * need this, it is rescheduled when its old expiration time comes up.
+     */
+    public void reschedule(DNSRecord rec)
+    {
+        final long time = rec.getExpirationTime(100);
+        synchronized (expiryLock)
+        {
+            if ((rec.scheduledExpiration == 0) || (time < rec.scheduledExpiration))
             {
-                if (node.value == entry)
+                push(time, rec);
+                compactIfStale();
+            }
+        }
+    }
+
+    /**
+     * Returns the earliest time a record in the cache may expire, or
+     * Long.MAX_VALUE if the cache is empty.
+     */
+    public long nextExpiration()
+    {
+        synchronized (expiryLock)
+        {
+            return (expirySize > 0) ? expiryTimes[0] : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Removes the records that have expired from the cache, and returns
+     * them. Only looks at the records that are due.
+     */
+    public List pollExpired(long now)
+    {
+        final List due = new ArrayList();
+        synchronized (expiryLock)
+        {
+            while ((expirySize > 0) && (expiryTimes[0] <= now))
+            {
+                final long time = expiryTimes[0];
+                final DNSRecord rec = pop();
+                if (time != rec.scheduledExpiration)
+                {
+                    // stale entry
+                    continue;
+                }
+                final long expiration = rec.getExpirationTime(100);
+                if (expiration > now)
                 {
-                    previous.next = node.next;
-                    size--;
-                    return true;
+                    // the TTL was extended
+                    push(expiration, rec);
+                }
+                else
+                {
+                    rec.scheduledExpiration = 0;
+                    expiryLive--;
+                    due.add(rec);
                 }
-                previous = node;
-                node = node.next;
             }
-            ;
         }
-        return false;
+        final List result = new ArrayList(due.size());
+        for (final Iterator i = due.iterator(); i.hasNext();)
+        {
+            final DNSRecord rec = (DNSRecord) i.next();
+            if (remove(rec))
+            {
+                result.add(rec);
+            }
+        }
+        return result;
+    }
+
+    private void push(long time, DNSRecord rec)
+    {
+        if (expirySize == expiryTimes.length)
+        {
+            final long[] times = new long[2 * expirySize];
+            final DNSRecord[] records = new DNSRecord[2 * expirySize];
+            System.arraycopy(expiryTimes, 0, times, 0, expirySize);
+            System.arraycopy(expiryRecords, 0, records, 0, expirySize);
+            expiryTimes = times;
+            expiryRecords = records;
+        }
+        if (rec.scheduledExpiration == 0)
+        {
+            expiryLive++;
+        }
+        rec.scheduledExpiration = time;
+        int i = expirySize++;
+        while (i > 0)
+        {
+            final int parent = (i - 1) >>> 1;
+            if (expiryTimes[parent] <= time)
+            {
+                break;
+            }
+            expiryTimes[i] = expiryTimes[parent];
+            expiryRecords[i] = expiryRecords[parent];
+            i = parent;
+        }
+        expiryTimes[i] = time;
+        expiryRecords[i] = rec;
+    }
+
+    private DNSRecord pop()
+    {
+        final DNSRecord result = expiryRecords[0];
+        final int last = --expirySize;
+        final long time = expiryTimes[last];
+        final DNSRecord rec = expiryRecords[last];
+        expiryRecords[last] = null;
+        if (last > 0)
+        {
+            siftDown(0, time, rec);
+        }
+        return result;
+    }
+
+    /**
+     * Puts an entry at a position of the heap, or below it, moving the
+     * smaller children up.
+     */
+    private void siftDown(int i, long time, DNSRecord rec)
+    {
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= expirySize)
+            {
+                break;
+            }
+            if ((child + 1 < expirySize) && (expiryTimes[child + 1] < expiryTimes[child]))
+            {
+                child++;
+            }
+            if (time <= expiryTimes[child])
+            {
+                break;
+            }
+            expiryTimes[i] = expiryTimes[child];
+            expiryRecords[i] = expiryRecords[child];
+            i = child;
+        }
+        expiryTimes[i] = time;
+        expiryRecords[i] = rec;
+    }
+
+    /**
+     * Drops the stale entries of the heap if there are more of them than
+     * live ones, and rebuilds it.
+     */
+    private void compactIfStale()
+    {
+        if ((expirySize <= 64) || (expirySize - expiryLive <= expiryLive))
+        {
+            return;
+        }
+        final int capacity = Math.max(64, 2 * expiryLive);
+        final long[] times = new long[capacity];
+        final DNSRecord[] records = new DNSRecord[capacity];
+        int size = 0;
+        for (int i = 0; i < expirySize; i++)
+        {
+            final DNSRecord rec = expiryRecords[i];
+            if (expiryTimes[i] == rec.scheduledExpiration)
+            {
+                if (size == capacity)
+                {
+                    // a record may have two live entries, keep them both
+                    return;
+                }
+                times[size] = expiryTimes[i];
+                records[size] = rec;
+                size++;
+            }
+        }
+        expiryTimes = times;
+        expiryRecords = records;
+        expirySize = size;
+        for (int i = (size >>> 1) - 1; i >= 0; i--)
+        {
+            siftDown(i, expiryTimes[i], expiryRecords[i]);
+        }
+    }
+
+    /**
+     * Returns a list without the given entry, sharing the nodes behind it.
+     * Returns the list itself if the entry is not in it.
+     */
+    private static CacheNode without(CacheNode node, DNSEntry entry)
+    {
+        if (node == null)
+        {
+            return null;
+        }
+        if (node.value == entry)
+        {
+            return node.next;
+        }
+        final CacheNode rest = without(node.next, entry);
+        return (rest == node.next) ? node : new CacheNode(node.value, rest);
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     */
+    public int size()
+    {
+        return size.get();
     }
 
     /**
      * Get a matching DNS entry from the table (using equals). Returns the entry
      * that was found.
      */
-    public synchronized DNSEntry get(DNSEntry entry)
+    public DNSEntry get(DNSEntry entry)
     {
-        for (CacheNode node = find(entry.getName()); node != null; node = node.next)
+        for (CacheNode node = find(entry.getDNSName(), entry.type, entry.clazz); node != null; node = node.next)
         {
             if (node.value.equals(entry))
             {
+                touch(node.value);
                 return node.value;
             }
         }
@@ -185,18 +702,53 @@ public class DNSCache
     }
 
     /**
-     * Get a matching DNS entry from the table.
+     * Check if an entry is in the table. Unlike get(), this does not count
+     * as a use of the entry.
      */
-    public synchronized DNSEntry get(String name, int type, int clazz)
+    public boolean contains(DNSEntry entry)
     {
-        for (CacheNode node = find(name); node != null; node = node.next)
+        for (CacheNode node = find(entry.getDNSName(), entry.type, entry.clazz); node != null; node = node.next)
         {
-            if (node.value.type == type && node.value.clazz == clazz)
+            if (node.value == entry)
             {
-                return node.value;
+                return true;
             }
         }
-        return null;
+        return false;
+    }
+
+    /**
+     * Get a matching DNS entry from the table.
+     */
+    public DNSEntry get(String name, int type, int clazz)
+    {
+        return get(DNSName.get(name), type, clazz);
+    }
+
+    /**
+     * Get a matching DNS entry from the table. The case of the name is
+     * ignored.
+     */
+    public DNSEntry get(DNSName name, int type, int clazz)
+    {
+        final CacheNode node = find(name, type, clazz);
+        if (node == null)
+        {
+            return null;
+        }
+        touch(node.value);
+        return node.value;
+    }
+
+    /**
+     * Gives an entry that was looked up another round of the clock hand.
+     */
+    private static void touch(DNSEntry entry)
+    {
+        if (entry instanceof DNSRecord)
+        {
+            ((DNSRecord) entry).referenced = true;
+        }
     }
 
     /**
@@ -204,10 +756,13 @@ public class DNSCache
      * DNSCache.CacheNode. Each instance returned is the first node of a linked
      * list. To retrieve all entries, one must iterate over this linked list.
      * See code snippets in the header of the class.
+     * <p/>
+     * The iterator reflects the cache at some point at or since its creation,
+     * and never throws ConcurrentModificationException.
      */
-    public synchronized Iterator iterator()
+    public Iterator iterator()
     {
-        return new ArrayList(hashtable.values()).iterator();
+        return hashtable.values().iterator();
     }
 
     /**
@@ -216,15 +771,50 @@ public class DNSCache
      * node of a linked list. To retrieve all entries, one must iterate over
      * this linked list.
      */
-    public synchronized CacheNode find(String name)
+    public CacheNode find(String name)
     {
-        return (CacheNode) hashtable.get(name);
+        return find(DNSName.get(name));
+    }
+
+    /**
+     * Iterate only over items whose name only differs in case from the given
+     * name. See find(String).
+     */
+    public CacheNode find(DNSName name)
+    {
+        return (CacheNode) hashtable.get(name.canonical());
+    }
+
+    /**
+     * Iterate only over items with matching name, type and class. The case
+     * of the name is ignored. See find(String).
+     */
+    public CacheNode find(DNSName name, int type, int clazz)
+    {
+        return (CacheNode) byKey.get(new Key(name, type, clazz));
+    }
+
+    /**
+     * Iterate only over items of a type. See find(String).
+     */
+    public CacheNode findByType(int type)
+    {
+        return (CacheNode) byType.get(Integer.valueOf(type));
+    }
+
+    /**
+     * Iterate only over the SRV records that point to a host. The case of
+     * the name is ignored. See find(String).
+     */
+    public CacheNode findBySrvTarget(DNSName host)
+    {
+        return (CacheNode) bySrvTarget.get(host.canonical());
     }
 
     /**
      * List all entries for debugging.
      */
-    public synchronized void print()
+    public void print()
     {
         for (final Iterator i = iterator(); i.hasNext();)
         {
@@ -235,7 +825,39 @@ public class DNSCache
         }
     }
 
-    public synchronized String toString()
+    /**
+     * The key of the index by exact name, type and class.
+     */
+    private static final class Key
+    {
+        private final DNSName name;
+        private final int type;
+        private final int clazz;
+
+        Key(DNSName name, int type, int clazz)
+        {
+            this.name = name.canonical();
+            this.type = type;
+            this.clazz = clazz;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (obj instanceof Key)
+            {
+                final Key other = (Key) obj;
+                return (name == other.name) && (type == other.type) && (clazz == other.clazz);
+            }
+            return false;
+        }
+
+        public int hashCode()
+        {
+            return (31 * name.hashCode() + type) * 31 + clazz;
+        }
+    }
+
+    public String toString()
     {
         final StringBuffer aLog = new StringBuffer();
         aLog.append("\t---- cache ----");
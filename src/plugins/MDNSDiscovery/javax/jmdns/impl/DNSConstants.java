@@ -46,6 +46,7 @@ public final class DNSConstants
     public final static int CLASS_ANY = 255;		// Not a DNS class, but a DNS query class, meaning "all classes"
     public final static int CLASS_MASK = 0x7FFF;	// Multicast DNS uses the bottom 15 bits to identify the record class...
     public final static int CLASS_UNIQUE = 0x8000;	// ... and the top bit indicates that all other cached records are now invalid
+    public final static int CLASS_UNICAST_RESPONSE = 0x8000;	// In a question, the top bit asks for a unicast response (QU)
 
     public final static int TYPE_IGNORE = 0;		// This is a hack to stop further processing
     public final static int TYPE_A = 1; 		// Address
@@ -121,5 +122,18 @@ public final class DNSConstants
     public final static int ANNOUNCE_WAIT_INTERVAL = 1000;          //milliseconds between Announce loops.
     public final static int RECORD_REAPER_INTERVAL = 10000;         //milliseconds between cache cleanups.
     public final static int KNOWN_ANSWER_TTL = 120;
+    public final static int DUPLICATE_INTERVAL = 1000;          //milliseconds a datagram received over one protocol family
+    // suppresses the same datagram received over the other one.
+    public final static int CACHE_MAX_ENTRIES = 4096;          //maximum number of records in the cache.
+    public final static long CACHE_MAX_BYTES = 1024 * 1024;      //maximum approximate memory used by the cache.
+    public final static int CACHE_SNAPSHOT_INTERVAL = 5 * 60 * 1000; //milliseconds between cache snapshots.
+    public final static int REVALIDATION_WAIT_INTERVAL = 10000;   //milliseconds to wait for answers confirming
+    // the records reloaded from a cache snapshot.
+    public final static int REFRESH_BATCH_INTERVAL = 1000;         //milliseconds within which record refreshes are
+    // asked for with the same query.
+    public final static int DUPLICATE_QUESTION_INTERVAL = 1000;          //milliseconds a question asked by another host
+    // suppresses the same question of ours.
+    public final static int SCHEDULER_TICK_INTERVAL = 10;          //milliseconds between ticks of the task scheduler.
+    public final static int SCHEDULER_WHEEL_SIZE = 512;          //number of ticks in a turn of the task scheduler.
     public final static int ANNOUNCED_RENEWAL_TTL_INTERVAL = DNS_TTL * 500; // 50% of the TTL in milliseconds
 }
@@ -17,7 +17,7 @@ import java.util.logging.Logger;
 public class DNSEntry
 {
     private static Logger logger = Logger.getLogger(DNSEntry.class.getName());
-    String key;
+    DNSName dnsName;
     String name;
     int type;
     int clazz;
@@ -28,8 +28,16 @@ public class DNSEntry
      */
     DNSEntry(String name, int type, int clazz)
     {
-        this.key = name.toLowerCase();
-        this.name = name;
+        this(DNSName.get(name), type, clazz);
+    }
+
+    /**
+     * Create an entry.
+     */
+    DNSEntry(DNSName dnsName, int type, int clazz)
+    {
+        this.dnsName = dnsName;
+        this.name = dnsName.toString();
         this.type = type;
         this.clazz = clazz & DNSConstants.CLASS_MASK;
         this.unique = (clazz & DNSConstants.CLASS_UNIQUE) != 0;
@@ -43,7 +51,7 @@ public class DNSEntry
         if (obj instanceof DNSEntry)
         {
             DNSEntry other = (DNSEntry) obj;
-            return name.equals(other.name) && type == other.type && clazz == other.clazz;
+            return dnsName == other.dnsName && type == other.type && clazz == other.clazz;
         }
         return false;
     }
@@ -53,6 +61,19 @@ public class DNSEntry
         return name;
     }
 
+    public DNSName getDNSName()
+    {
+        return dnsName;
+    }
+
+    /**
+     * Returns the lower case form of the name, see DNSName.getKey().
+     */
+    public String getKey()
+    {
+        return dnsName.getKey();
+    }
+
     public int getType()
     {
         return type;
@@ -64,7 +85,7 @@ public class DNSEntry
      */
     public int hashCode()
     {
-        return name.hashCode() + type + clazz;
+        return dnsName.hashCode() + type + clazz;
     }
 
     /**
@@ -9,15 +9,25 @@ package plugins.MDNSDiscovery.javax.jmdns.impl;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Parse an incoming DNS message into its components.
+ * An incoming DNS message.
+ * <p/>
+ * The message is a view on the buffer it was received in. The constructor
+ * only reads the header and walks the message once to find where each
+ * question and record starts, validating the structure on the way. A
+ * question or record is decoded into an object the first time it is
+ * accessed, so the records nobody looks at cost no allocations. The type
+ * and the name of a question or record can be checked against the wire
+ * bytes without decoding it.
  *
  * @version %I%, %G%
  * @author	Arthur van Hoff, Werner Randelshofer, Pierre Frisch, Daniel Bobbert
@@ -25,22 +35,29 @@ import java.util.logging.Logger;
 public final class DNSIncoming
 {
     private static Logger logger = Logger.getLogger(DNSIncoming.class.getName());
-    
+
     // This is a hack to handle a bug in the BonjourConformanceTest
     // It is sending out target strings that don't follow the "domain name"
-    // format. 
+    // format.
     public static boolean USE_DOMAIN_NAME_FORMAT_FOR_SRV_TARGET = true;
-    
-    // Implementation note: This vector should be immutable.
-    // If a client of DNSIncoming changes the contents of this vector,
-    // we get undesired results. To fix this, we have to migrate to
-    // the Collections API of Java 1.2. i.e we replace Vector by List.
-    // final static Vector EMPTY = new Vector();
-    
-    private DatagramPacket packet;
+
+    /**
+     * Returned by the name hashing methods for names they can not hash.
+     */
+    static final long NO_HASH = -1L;
+
+    /**
+     * The message, from position 0 to its limit. Only read with absolute
+     * gets, so the view is never modified.
+     */
+    private final ByteBuffer buffer;
+    private final InetAddress source;
+    private final int port;
+    private final int len;
+    /**
+     * Read cursor of the decoding methods.
+     */
     private int off;
-    private int len;
-    private byte data[];
 
     int id;
     private int flags;
@@ -50,21 +67,50 @@ public final class DNSIncoming
     private int numAdditionals;
     private long receivedTime;
 
+    /**
+     * Offset and type of each question.
+     */
+    private int[] questionOffsets;
+    private int[] questionTypes;
+    /**
+     * Offset and type of each supported record, answers first, then
+     * authorities, then additionals.
+     */
+    private int[] recordOffsets;
+    private int[] recordTypes;
+    /**
+     * The questions and records decoded so far.
+     */
+    private DNSQuestion[] decodedQuestions;
+    private DNSRecord[] decodedRecords;
+
     private List questions;
     List answers;
+    /**
+     * The known answers of the message, each mapped to itself, see
+     * getKnownAnswer(). Built on first use.
+     */
+    private HashMap knownAnswers;
 
     /**
      * Parse a message from a datagram packet.
      */
     DNSIncoming(DatagramPacket packet) throws IOException
     {
-        this.packet = packet;
-        InetAddress source = packet.getAddress();
-        this.data = packet.getData();
-        this.len = packet.getLength();
-        this.off = packet.getOffset();
-        this.questions = Collections.EMPTY_LIST;
-        this.answers = Collections.EMPTY_LIST;
+        this(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).slice(), packet.getAddress(), packet.getPort());
+    }
+
+    /**
+     * Parse a message from a buffer. The message runs from position 0 of
+     * the buffer to its limit. The buffer must not be modified afterwards.
+     */
+    DNSIncoming(ByteBuffer buffer, InetAddress source, int port) throws IOException
+    {
+        this.buffer = buffer;
+        this.source = source;
+        this.port = port;
+        this.len = buffer.limit();
+        this.off = 0;
         this.receivedTime = System.currentTimeMillis();
 
         try
@@ -76,122 +122,109 @@ public final class DNSIncoming
             numAuthorities = readUnsignedShort();
             numAdditionals = readUnsignedShort();
 
-            // parse questions
-            if (numQuestions > 0)
+            // find the questions
+            questionOffsets = new int[numQuestions];
+            questionTypes = new int[numQuestions];
+            for (int i = 0; i < numQuestions; i++)
             {
-                questions = Collections.synchronizedList(new ArrayList(numQuestions));
-                for (int i = 0; i < numQuestions; i++)
-                {
-                    DNSQuestion question = new DNSQuestion(readName(), readUnsignedShort(), readUnsignedShort());
-                    questions.add(question);
-                }
+                questionOffsets[i] = off;
+                off = skipName(off);
+                questionTypes[i] = readUnsignedShort();
+                readUnsignedShort();
             }
 
-            // parse answers
+            // find the records
             int n = numAnswers + numAuthorities + numAdditionals;
-            if (n > 0)
+            int answerEnd = numAnswers;
+            int authorityEnd = numAnswers + numAuthorities;
+            recordOffsets = new int[n];
+            recordTypes = new int[n];
+            int count = 0;
+            for (int i = 0; i < n; i++)
             {
-                answers = Collections.synchronizedList(new ArrayList(n));
-                for (int i = 0; i < n; i++)
+                int start = off;
+                off = skipName(off);
+                int type = readUnsignedShort();
+                readUnsignedShort();
+                readInt();
+                int len = readUnsignedShort();
+                int end = off + len;
+                if (end > this.len)
                 {
-                    String domain = readName();
-                    int type = readUnsignedShort();
-                    int clazz = readUnsignedShort();
-                    int ttl = readInt();
-                    int len = readUnsignedShort();
-                    int end = off + len;
-                    DNSRecord rec = null;
-
-                    switch (type)
-                    {
-                        case DNSConstants.TYPE_A:		// IPv4
-                        case DNSConstants.TYPE_AAAA:	// IPv6 FIXME [PJYF Oct 14 2004] This has not been tested
-                            rec = new DNSRecord.Address(domain, type, clazz, ttl, readBytes(off, len));
-                            break;
-                        case DNSConstants.TYPE_CNAME:
-                        case DNSConstants.TYPE_PTR:
-                            String service = "";
-                            try {
-                                service = readName();                                
-                            } catch (IOException e){
-                                // there was a problem reading the service name
-                                e.printStackTrace();
-                            }
-                            rec = new DNSRecord.Pointer(domain, type, clazz, ttl, service);
-                            break;
-                        case DNSConstants.TYPE_TXT:
-                            rec = new DNSRecord.Text(domain, type, clazz, ttl, readBytes(off, len));
-                            break;
-                        case DNSConstants.TYPE_SRV:
-                            int priority = readUnsignedShort();
-                            int weight = readUnsignedShort();
-                            int port = readUnsignedShort();
-                            String target = "";
-                            try {
-                                // This is a hack to handle a bug in the BonjourConformanceTest
-                                // It is sending out target strings that don't follow the "domain name"
-                                // format. 
-                                
-                                if(USE_DOMAIN_NAME_FORMAT_FOR_SRV_TARGET){
-                                    target = readName();                                    
-                                } else {
-                                    target = readNonNameString();
-                                }
-                            } catch (IOException e) {
-                                // this can happen if the type of the label 
-                                // cannot be handled.  
-                                // down below the offset gets advanced to the end
-                                // of the record 
-                                e.printStackTrace();
-                            }
-                            rec = new DNSRecord.Service(domain, type, clazz, ttl,
-                                priority, weight, port, target);
-                            break;
-                        case DNSConstants.TYPE_HINFO:
-                            // Maybe we should do something with those
-                            break;
-                        default :
-                            logger.finer("DNSIncoming() unknown type:" + type);
-                            break;
-                    }
+                    throw new IOException("parser error: record exceeds message, offset=" + start);
+                }
+                // The fixed part of the data is read by getRecord(), the
+                // names in it are read leniently
+                if ((type == DNSConstants.TYPE_SRV) && (len < 6))
+                {
+                    throw new IOException("parser error: short SRV record, offset=" + start);
+                }
 
-                    if (rec != null)
+                if (isSupported(type))
+                {
+                    recordOffsets[count] = start;
+                    recordTypes[count] = type;
+                    count++;
+                }
+                else
+                {
+                    logger.finer("DNSIncoming() unknown type:" + type);
+                    // Addjust the numbers for the skipped record
+                    if (i < answerEnd)
                     {
-                        rec.setRecordSource(source);
-                        // Add a record, if we were able to create one.
-                        answers.add(rec);
+                        numAnswers--;
                     }
                     else
                     {
-                        // Addjust the numbers for the skipped record
-                        if (answers.size() < numAnswers)
+                        if (i < authorityEnd)
                         {
-                            numAnswers--;
+                            numAuthorities--;
                         }
                         else
                         {
-                            if (answers.size() < numAnswers + numAuthorities)
-                            {
-                                numAuthorities--;
-                            }
-                            else
-                            {
-                                if (answers.size() < numAnswers + numAuthorities + numAdditionals)
-                                {
-                                    numAdditionals--;
-                                }
-                            }
+                            numAdditionals--;
                         }
                     }
-                    off = end;
                 }
+                off = end;
+            }
+            if (count < n)
+            {
+                int[] offsets = new int[count];
+                int[] types = new int[count];
+                System.arraycopy(recordOffsets, 0, offsets, 0, count);
+                System.arraycopy(recordTypes, 0, types, 0, count);
+                recordOffsets = offsets;
+                recordTypes = types;
             }
         }
         catch (IOException e)
         {
-            logger.log(Level.WARNING, "DNSIncoming() dump " + print(true) + "\n exception ", e);
+            logger.log(Level.WARNING, "DNSIncoming() dump " + dump() + "\n exception ", e);
             throw e;
         }
+
+        decodedQuestions = new DNSQuestion[numQuestions];
+        decodedRecords = new DNSRecord[numAnswers + numAuthorities + numAdditionals];
+        questions = new QuestionList();
+        answers = new RecordList();
+    }
+
+    private static boolean isSupported(int type)
+    {
+        switch (type)
+        {
+            case DNSConstants.TYPE_A:
+            case DNSConstants.TYPE_AAAA:
+            case DNSConstants.TYPE_CNAME:
+            case DNSConstants.TYPE_PTR:
+            case DNSConstants.TYPE_TXT:
+            case DNSConstants.TYPE_SRV:
+                return true;
+            default:
+                // Maybe we should do something with TYPE_HINFO
+                return false;
+        }
     }
 
     /**
@@ -218,13 +251,181 @@ public final class DNSIncoming
         return (flags & DNSConstants.FLAGS_QR_MASK) == DNSConstants.FLAGS_QR_RESPONSE;
     }
 
+    /**
+     * Returns the number of questions in the datagram. Questions appended
+     * with append() are not included.
+     */
+    int getQuestionCount()
+    {
+        return questionOffsets.length;
+    }
+
+    /**
+     * Returns the type of a question, without decoding it.
+     */
+    int getQuestionType(int index)
+    {
+        return questionTypes[index];
+    }
+
+    /**
+     * Check if a question is for the given name, without decoding it. The
+     * name is compared ignoring case.
+     */
+    synchronized boolean questionNameEquals(int index, String name)
+    {
+        return nameEquals(questionOffsets[index], name);
+    }
+
+    /**
+     * Returns the hashes of the name of a question, see nameHashes().
+     */
+    synchronized long questionNameHashes(int index)
+    {
+        return nameHashes(questionOffsets[index]);
+    }
+
+    /**
+     * Returns the number of supported records in the datagram, answers,
+     * authorities and additionals together. Records appended with append()
+     * are not included.
+     */
+    int getRecordCount()
+    {
+        return recordOffsets.length;
+    }
+
+    /**
+     * Returns the type of a record, without decoding it.
+     */
+    int getRecordType(int index)
+    {
+        return recordTypes[index];
+    }
+
+    /**
+     * Check if a record has the given name, without decoding it. The name
+     * is compared ignoring case.
+     */
+    synchronized boolean recordNameEquals(int index, String name)
+    {
+        return nameEquals(recordOffsets[index], name);
+    }
+
+    /**
+     * Returns the hashes of the name of a record, see nameHashes().
+     */
+    synchronized long recordNameHashes(int index)
+    {
+        return nameHashes(recordOffsets[index]);
+    }
+
+    /**
+     * Returns a question, decoding it on first access.
+     */
+    synchronized DNSQuestion getQuestion(int index)
+    {
+        DNSQuestion question = decodedQuestions[index];
+        if (question == null)
+        {
+            try
+            {
+                off = questionOffsets[index];
+                question = new DNSQuestion(readName(), readUnsignedShort(), readUnsignedShort());
+            }
+            catch (IOException e)
+            {
+                // Can not happen, the constructor checked the question
+                throw new IllegalStateException(e.toString());
+            }
+            decodedQuestions[index] = question;
+        }
+        return question;
+    }
+
+    /**
+     * Returns a record, decoding it on first access.
+     */
+    synchronized DNSRecord getRecord(int index)
+    {
+        DNSRecord rec = decodedRecords[index];
+        if (rec == null)
+        {
+            try
+            {
+                off = recordOffsets[index];
+                rec = readRecord();
+            }
+            catch (IOException e)
+            {
+                // Can not happen, the constructor checked the record
+                throw new IllegalStateException(e.toString());
+            }
+            rec.setRecordSource(source);
+            decodedRecords[index] = rec;
+        }
+        return rec;
+    }
+
+    private DNSRecord readRecord() throws IOException
+    {
+        String domain = readName();
+        int type = readUnsignedShort();
+        int clazz = readUnsignedShort();
+        int ttl = readInt();
+        int len = readUnsignedShort();
+
+        switch (type)
+        {
+            case DNSConstants.TYPE_A:		// IPv4
+            case DNSConstants.TYPE_AAAA:	// IPv6
+                return new DNSRecord.Address(domain, type, clazz, ttl, readBytes(off, len));
+            case DNSConstants.TYPE_CNAME:
+            case DNSConstants.TYPE_PTR:
+                String service = "";
+                try {
+                    service = readName();
+                } catch (IOException e){
+                    // there was a problem reading the service name
+                    logger.log(Level.WARNING, "readRecord() exception ", e);
+                }
+                return new DNSRecord.Pointer(domain, type, clazz, ttl, service);
+            case DNSConstants.TYPE_TXT:
+                return new DNSRecord.Text(domain, type, clazz, ttl, readBytes(off, len));
+            case DNSConstants.TYPE_SRV:
+                int priority = readUnsignedShort();
+                int weight = readUnsignedShort();
+                int port = readUnsignedShort();
+                String target = "";
+                try {
+                    // This is a hack to handle a bug in the BonjourConformanceTest
+                    // It is sending out target strings that don't follow the "domain name"
+                    // format.
+
+                    if(USE_DOMAIN_NAME_FORMAT_FOR_SRV_TARGET){
+                        target = readName();
+                    } else {
+                        target = readNonNameString();
+                    }
+                } catch (IOException e) {
+                    // this can happen if the type of the label
+                    // cannot be handled.
+                    logger.log(Level.WARNING, "readRecord() exception ", e);
+                }
+                return new DNSRecord.Service(domain, type, clazz, ttl,
+                    priority, weight, port, target);
+            default :
+                throw new IOException("unsupported type: " + type);
+        }
+    }
+
     private int get(int off) throws IOException
     {
         if ((off < 0) || (off >= len))
         {
             throw new IOException("parser error: offset=" + off);
         }
-        return data[off] & 0xFF;
+        return buffer.get(off) & 0xFF;
     }
 
     private int readUnsignedShort() throws IOException
@@ -237,14 +438,25 @@ public final class DNSIncoming
         return (readUnsignedShort() << 16) + readUnsignedShort();
     }
 
+    /**
+     * Copies bytes out of the message. Records outlive the buffer, so
+     * they can not share it.
+     */
     private byte[] readBytes(int off, int len) throws IOException
     {
+        if (off + len > this.len)
+        {
+            throw new IOException("parser error: offset=" + (off + len));
+        }
         byte bytes[] = new byte[len];
-        System.arraycopy(data, off, bytes, 0, len);
+        for (int i = 0; i < len; i++)
+        {
+            bytes[i] = buffer.get(off + i);
+        }
         return bytes;
     }
 
-    private void readUTF(StringBuffer buf, int off, int len) throws IOException
+    private void readUTF(StringBuilder buf, int off, int len) throws IOException
     {
         for (int end = off + len; off < end;)
         {
@@ -264,34 +476,44 @@ public final class DNSIncoming
                 case 12:
                 case 13:
                     // 110x xxxx   10xx xxxx
-                    ch = ((ch & 0x1F) << 6) | (get(off++) & 0x3F);
+                    ch = ((ch & 0x1F) << 6) | (getInLabel(off++, end) & 0x3F);
                     break;
                 case 14:
                     // 1110 xxxx  10xx xxxx  10xx xxxx
-                    ch = ((ch & 0x0f) << 12) | ((get(off++) & 0x3F) << 6) | (get(off++) & 0x3F);
+                    ch = ((ch & 0x0f) << 12) | ((getInLabel(off++, end) & 0x3F) << 6) | (getInLabel(off++, end) & 0x3F);
                     break;
                 default:
                     // 10xx xxxx,  1111 xxxx
-                    ch = ((ch & 0x3F) << 4) | (get(off++) & 0x0f);
+                    ch = ((ch & 0x3F) << 4) | (getInLabel(off++, end) & 0x0f);
                     break;
             }
             buf.append((char) ch);
         }
     }
 
+    /**
+     * Returns a byte of a character that may run past the end of its label,
+     * or 0 past the end, so that a bad label can not make a name that
+     * skipName() accepted unreadable.
+     */
+    private int getInLabel(int off, int end) throws IOException
+    {
+        return (off < end) ? get(off) : 0;
+    }
+
     private String readNonNameString() throws IOException
     {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         int off = this.off;
         int len = get(off++);
         readUTF(buf, off, len);
 
         return buf.toString();
     }
-    
+
     private String readName() throws IOException
     {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         int off = this.off;
         int next = -1;
         int first = off;
@@ -334,12 +556,165 @@ public final class DNSIncoming
         return buf.toString();
     }
 
+    /**
+     * Checks the name at an offset the way readName() reads it, without
+     * decoding it.
+     *
+     * @return the offset following the name.
+     */
+    private int skipName(int off) throws IOException
+    {
+        int next = -1;
+        int first = off;
+
+        while (true)
+        {
+            int len = get(off++);
+            if (len == 0)
+            {
+                break;
+            }
+            switch (len & 0xC0)
+            {
+                case 0x00:
+                    off += len;
+                    break;
+                case 0xC0:
+                    if (next < 0)
+                    {
+                        next = off + 1;
+                    }
+                    off = ((len & 0x3F) << 8) | get(off++);
+                    if (off >= first)
+                    {
+                        throw new IOException("bad domain name: possible circular name detected." +
+                                " name start: " + first +
+                                " bad offset: 0x" + Integer.toHexString(off));
+                    }
+                    first = off;
+                    break;
+                default:
+                    throw new IOException("unsupported dns label type: '" + Integer.toHexString(len & 0xC0) +"' at " + (off-1));
+            }
+        }
+        return (next >= 0) ? next : off;
+    }
+
+    /**
+     * Compares the name at an offset with a name in the form returned by
+     * readName(), ignoring case. Names with non ASCII characters are
+     * decoded and compared as strings.
+     */
+    private boolean nameEquals(int start, String name)
+    {
+        try
+        {
+            int off = start;
+            int pos = 0;
+            while (true)
+            {
+                int len = get(off++);
+                if (len == 0)
+                {
+                    return pos == name.length();
+                }
+                if ((len & 0xC0) == 0xC0)
+                {
+                    off = ((len & 0x3F) << 8) | get(off);
+                    continue;
+                }
+                if ((pos + len >= name.length()) || (name.charAt(pos + len) != '.'))
+                {
+                    return false;
+                }
+                for (int i = 0; i < len; i++)
+                {
+                    int ch = get(off + i);
+                    if (ch >= 0x80)
+                    {
+                        this.off = start;
+                        return readName().equalsIgnoreCase(name);
+                    }
+                    char c = name.charAt(pos + i);
+                    if ((ch != c) && (Character.toLowerCase((char) ch) != Character.toLowerCase(c)))
+                    {
+                        return false;
+                    }
+                }
+                off += len;
+                pos += len + 1;
+            }
+        }
+        catch (IOException e)
+        {
+            // The structure was checked by the constructor
+            return false;
+        }
+    }
+
+    /**
+     * Hashes the name at an offset, the way InterestIndex.hash() hashes the
+     * dotted form of the name, without decoding it.
+     *
+     * @return the hash of the name in the upper 32 bits, and the hash of the
+     *      name without its first label in the lower 32 bits, or NO_HASH if
+     *      the name contains non ASCII characters.
+     */
+    private long nameHashes(int off)
+    {
+        try
+        {
+            int full = 0;
+            int parent = 0;
+            boolean first = true;
+            while (true)
+            {
+                int len = get(off++);
+                if (len == 0)
+                {
+                    return ((long) full << 32) | (parent & 0xFFFFFFFFL);
+                }
+                if ((len & 0xC0) == 0xC0)
+                {
+                    off = ((len & 0x3F) << 8) | get(off);
+                    continue;
+                }
+                for (int i = 0; i < len; i++)
+                {
+                    int ch = get(off + i);
+                    if (ch >= 0x80)
+                    {
+                        return NO_HASH;
+                    }
+                    ch = InterestIndex.toLower(ch);
+                    full = 31 * full + ch;
+                    if (!first)
+                    {
+                        parent = 31 * parent + ch;
+                    }
+                }
+                full = 31 * full + '.';
+                if (!first)
+                {
+                    parent = 31 * parent + '.';
+                }
+                first = false;
+                off += len;
+            }
+        }
+        catch (IOException e)
+        {
+            // The structure was checked by the constructor
+            return NO_HASH;
+        }
+    }
+
     /**
      * Debugging.
      */
     String print(boolean dump)
     {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         buf.append(toString() + "\n");
         for (Iterator iterator = questions.iterator(); iterator.hasNext();)
         {
@@ -367,48 +742,55 @@ public final class DNSIncoming
         }
         if (dump)
         {
-            for (int off = 0, len = packet.getLength(); off < len; off += 32)
+            buf.append(dump());
+        }
+        return buf.toString();
+    }
+
+    private String dump()
+    {
+        StringBuilder buf = new StringBuilder();
+        for (int off = 0; off < len; off += 32)
+        {
+            int n = Math.min(32, len - off);
+            if (off < 10)
             {
-                int n = Math.min(32, len - off);
-                if (off < 10)
-                {
-                    buf.append(' ');
-                }
-                if (off < 100)
+                buf.append(' ');
+            }
+            if (off < 100)
+            {
+                buf.append(' ');
+            }
+            buf.append(off);
+            buf.append(':');
+            for (int i = 0; i < n; i++)
+            {
+                if ((i % 8) == 0)
                 {
                     buf.append(' ');
                 }
-                buf.append(off);
-                buf.append(':');
-                for (int i = 0; i < n; i++)
-                {
-                    if ((i % 8) == 0)
-                    {
-                        buf.append(' ');
-                    }
-                    buf.append(Integer.toHexString((data[off + i] & 0xF0) >> 4));
-                    buf.append(Integer.toHexString((data[off + i] & 0x0F) >> 0));
-                }
-                buf.append("\n");
-                buf.append("    ");
-                for (int i = 0; i < n; i++)
+                buf.append(Integer.toHexString((buffer.get(off + i) & 0xF0) >> 4));
+                buf.append(Integer.toHexString((buffer.get(off + i) & 0x0F) >> 0));
+            }
+            buf.append("\n");
+            buf.append("    ");
+            for (int i = 0; i < n; i++)
+            {
+                if ((i % 8) == 0)
                 {
-                    if ((i % 8) == 0)
-                    {
-                        buf.append(' ');
-                    }
                     buf.append(' ');
-                    int ch = data[off + i] & 0xFF;
-                    buf.append(((ch > ' ') && (ch < 127)) ? (char) ch : '.');
                 }
-                buf.append("\n");
+                buf.append(' ');
+                int ch = buffer.get(off + i) & 0xFF;
+                buf.append(((ch > ' ') && (ch < 127)) ? (char) ch : '.');
+            }
+            buf.append("\n");
 
-                // limit message size
-                if (off + 32 >= 256)
-                {
-                    buf.append("....\n");
-                    break;
-                }
+            // limit message size
+            if (off + 32 >= 256)
+            {
+                buf.append("....\n");
+                break;
             }
         }
         return buf.toString();
@@ -416,16 +798,16 @@ public final class DNSIncoming
 
     public String toString()
     {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         buf.append(isQuery() ? "dns[query," : "dns[response,");
-        if (packet.getAddress() != null)
+        if (source != null)
         {
-            buf.append(packet.getAddress().getHostAddress());
+            buf.append(source.getHostAddress());
         }
         buf.append(':');
-        buf.append(packet.getPort());
+        buf.append(port);
         buf.append(",len=");
-        buf.append(packet.getLength());
+        buf.append(len);
         buf.append(",id=0x");
         buf.append(Integer.toHexString(id));
         if (flags != 0)
@@ -470,26 +852,24 @@ public final class DNSIncoming
     }
 
     /**
-     * Appends answers to this Incoming.
+     * Appends answers to this Incoming. Both messages are decoded completely.
      *
      * @throws IllegalArgumentException If not a query or if Truncated.
      */
-    void append(DNSIncoming that)
+    synchronized void append(DNSIncoming that)
     {
         if (this.isQuery() && this.isTruncated() && that.isQuery())
         {
-            if (that.numQuestions > 0) {
-                if (Collections.EMPTY_LIST.equals(this.questions))
-                    this.questions = Collections.synchronizedList(new ArrayList(that.numQuestions));
+            // From now on the questions and answers no longer come from
+            // a single buffer
+            this.questions = new ArrayList(this.questions);
+            this.answers = new ArrayList(this.answers);
+            this.knownAnswers = null;
 
+            if (that.numQuestions > 0) {
                 this.questions.addAll(that.questions);
                 this.numQuestions += that.numQuestions;
             }
-            
-            if (Collections.EMPTY_LIST.equals(answers))
-            {
-                answers = Collections.synchronizedList(new ArrayList());
-            }
 
             if (that.numAnswers > 0)
             {
@@ -513,6 +893,73 @@ public final class DNSIncoming
         }
     }
 
+    /**
+     * Returns the known answer of the message that is the same as a record,
+     * or null if there is none. If the message has the record several
+     * times, the one with the longest TTL is returned.
+     */
+    synchronized DNSRecord getKnownAnswer(DNSRecord rec)
+    {
+        if (knownAnswers == null)
+        {
+            knownAnswers = new HashMap(2 * numAnswers + 1);
+            for (int i = 0; i < numAnswers; i++)
+            {
+                final DNSRecord known = (DNSRecord) answers.get(i);
+                final DNSRecord other = (DNSRecord) knownAnswers.get(known);
+                if ((other == null) || (known.getTtl() > other.getTtl()))
+                {
+                    knownAnswers.put(known, known);
+                }
+            }
+        }
+        return (DNSRecord) knownAnswers.get(rec);
+    }
+
+    /**
+     * True if a record is suppressed by the known answers of the message,
+     * see DNSRecord.suppressedBy().
+     */
+    public boolean isKnownAnswer(DNSRecord rec)
+    {
+        return rec.suppressedBy(this);
+    }
+
+    /**
+     * Returns the address the message came from, or null if not known.
+     */
+    public InetAddress getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Returns the port the message came from.
+     */
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * True if every question of the message asks for a unicast response.
+     */
+    public boolean isUnicastResponse()
+    {
+        if (numQuestions == 0)
+        {
+            return false;
+        }
+        for (int i = 0; i < numQuestions; i++)
+        {
+            if (!((DNSQuestion) questions.get(i)).isUnicastResponse())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int elapseSinceArrival()
     {
         return (int) (System.currentTimeMillis() - receivedTime);
@@ -527,4 +974,36 @@ public final class DNSIncoming
     {
         return answers;
     }
+
+    /**
+     * The questions of the message, decoded on access.
+     */
+    private class QuestionList extends AbstractList
+    {
+        public Object get(int index)
+        {
+            return getQuestion(index);
+        }
+
+        public int size()
+        {
+            return decodedQuestions.length;
+        }
+    }
+
+    /**
+     * The records of the message, decoded on access.
+     */
+    private class RecordList extends AbstractList
+    {
+        public Object get(int index)
+        {
+            return getRecord(index);
+        }
+
+        public int size()
+        {
+            return decodedRecords.length;
+        }
+    }
 }
@@ -0,0 +1,175 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable DNS name in dotted form.
+ * <p/>
+ * Names are interned: get() returns the same instance for the same spelling
+ * for as long as the name is in use anywhere, so that repeated names share
+ * memory and two names can be compared with <code>==</code>. Names that
+ * only differ in case share their canonical (lower case) form, which is
+ * what case insensitive lookups should be keyed by. The hash code ignores
+ * case, so names that differ only in case land in the same hash bucket.
+ *
+ * @version %I%, %G%
+ */
+public final class DNSName
+{
+    /**
+     * The interned names. Keys are the spellings, values are weak references
+     * to the names. The key is held by the name itself, so an entry goes away
+     * once its name is no longer referenced.
+     */
+    private static final WeakHashMap pool = new WeakHashMap();
+
+    private final String name;
+    private final String[] labels;
+    private final int hash;
+    private final DNSName canonical;
+
+    private DNSName(String name, DNSName canonical)
+    {
+        this.name = name;
+        this.labels = split(name);
+        this.canonical = (canonical != null) ? canonical : this;
+        this.hash = (canonical != null) ? canonical.hash : InterestIndex.hash(name);
+    }
+
+    /**
+     * Returns the interned name with a given spelling.
+     */
+    public static DNSName get(String name)
+    {
+        synchronized (pool)
+        {
+            DNSName result = lookup(name);
+            if (result == null)
+            {
+                final String key = name.toLowerCase();
+                DNSName canonical = null;
+                if (!key.equals(name))
+                {
+                    canonical = lookup(key);
+                    if (canonical == null)
+                    {
+                        canonical = new DNSName(key, null);
+                        intern(canonical);
+                    }
+                }
+                result = new DNSName(name, canonical);
+                intern(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Adds a name to the pool. An entry whose name was collected is removed
+     * first: put() would keep its key, which is not held by the new name,
+     * and the entry would go away while the new name is still in use.
+     */
+    private static void intern(DNSName name)
+    {
+        pool.remove(name.name);
+        pool.put(name.name, new WeakReference(name));
+    }
+
+    private static DNSName lookup(String name)
+    {
+        final WeakReference ref = (WeakReference) pool.get(name);
+        return (ref != null) ? (DNSName) ref.get() : null;
+    }
+
+    private static String[] split(String name)
+    {
+        int count = 0;
+        for (int start = 0; start < name.length();)
+        {
+            int end = name.indexOf('.', start);
+            if (end < 0)
+            {
+                end = name.length();
+            }
+            if (end == start)
+            {
+                break;
+            }
+            count++;
+            start = end + 1;
+        }
+        final String[] result = new String[count];
+        for (int i = 0, start = 0; i < count; i++)
+        {
+            int end = name.indexOf('.', start);
+            if (end < 0)
+            {
+                end = name.length();
+            }
+            result[i] = name.substring(start, end);
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the interned lower case form of this name.
+     */
+    public DNSName canonical()
+    {
+        return canonical;
+    }
+
+    /**
+     * Returns the lower case form of this name as a string. This is what
+     * the maps of services and service types are keyed by.
+     */
+    public String getKey()
+    {
+        return canonical.name;
+    }
+
+    /**
+     * Check if two names only differ in case.
+     */
+    public boolean equalsIgnoreCase(DNSName other)
+    {
+        return (other != null) && (canonical == other.canonical);
+    }
+
+    public int getLabelCount()
+    {
+        return labels.length;
+    }
+
+    public String getLabel(int index)
+    {
+        return labels[index];
+    }
+
+    /**
+     * Names are interned, so equal names are the same instance.
+     */
+    public boolean equals(Object obj)
+    {
+        return this == obj;
+    }
+
+    /**
+     * Returns a hash code that ignores case.
+     */
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -6,9 +6,9 @@
 package plugins.MDNSDiscovery.javax.jmdns.impl;
 
 import java.io.IOException;
-import java.util.Hashtable;
-import java.util.LinkedList;
-import java.util.logging.Level;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -33,12 +33,29 @@ public final class DNSOutgoing
     private int numAnswers;
     private int numAuthorities;
     private int numAdditionals;
-    private Hashtable names;
+    /**
+     * The labels written so far, for name compression.
+     */
+    private final NameTable names = new NameTable();
+    /**
+     * Scratch space for writeName().
+     */
+    private final int[] labelStarts = new int[16];
 
     byte data[];
     int off;
     int len;
 
+    /**
+     * A view of data, used to send the message.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * True while the message is in the pool of its JmDNS instance.
+     */
+    boolean pooled;
+
     /**
      * Create an outgoing multicast query or response.
      */
@@ -54,13 +71,33 @@ public final class DNSOutgoing
     {
         this.flags = flags;
         this.multicast = multicast;
-        names = new Hashtable();
         data = new byte[DNSConstants.MAX_MSG_TYPICAL];
+        buffer = ByteBuffer.wrap(data);
         off = 12;
     }
 
     /**
-     * Add a question to the message.
+     * Make this an empty message again, so that it can be reused. Keeps the
+     * buffers allocated for the previous message.
+     */
+    void reset(int flags, boolean multicast)
+    {
+        this.id = 0;
+        this.flags = flags;
+        this.multicast = multicast;
+        numQuestions = 0;
+        numAnswers = 0;
+        numAuthorities = 0;
+        numAdditionals = 0;
+        names.clear();
+        authorativeAnswers.clear();
+        pooled = false;
+        off = 12;
+    }
+
+    /**
+     * Add a question to the message. If the question does not fit, the
+     * message is left as it was.
      */
     public void addQuestion(DNSQuestion rec) throws IOException
     {
@@ -68,8 +105,8 @@ public final class DNSOutgoing
         {
             throw new IllegalStateException("Questions must be added before answers");
         }
-        numQuestions++;
         writeQuestion(rec);
+        numQuestions++;
     }
 
     /**
@@ -118,7 +155,7 @@ public final class DNSOutgoing
         }
     }
 
-    private LinkedList authorativeAnswers = new LinkedList();
+    private final ArrayList authorativeAnswers = new ArrayList();
 
     /**
      * Add an authorative answer to the message.
@@ -234,62 +271,157 @@ public final class DNSOutgoing
 
     void writeName(String name) throws IOException
     {
-        writeName(name, true);
+        writeName(DNSName.get(name), true);
     }
-    
+
     void writeName(String name, boolean useCompression) throws IOException
     {
-        while (true)
+        writeName(DNSName.get(name), useCompression);
+    }
+
+    void writeName(DNSName name) throws IOException
+    {
+        writeName(name, true);
+    }
+
+    /**
+     * Write a name. With compression, the longest suffix of the name that
+     * was already written is replaced by a pointer, and the labels written
+     * in full are added to the compression table.
+     */
+    void writeName(DNSName name, boolean useCompression) throws IOException
+    {
+        final int count = name.getLabelCount();
+        useCompression = useCompression && USE_DOMAIN_NAME_COMPRESSION;
+
+        // Find the longest suffix that was written before, from the root
+        // label down
+        int first = count;
+        int parent = 0;
+        if (useCompression)
         {
-            int n = name.indexOf('.');
-            if (n < 0)
+            while (first > 0)
             {
-                n = name.length();
+                final int found = names.find(this, name.getLabel(first - 1), parent);
+                if (found == 0)
+                {
+                    break;
+                }
+                parent = found;
+                first--;
             }
-            if (n <= 0)
+        }
+
+        // Write the other labels in full, remembering where they start
+        final int save = off;
+        final int[] starts = (first <= labelStarts.length) ? labelStarts : new int[first];
+        try
+        {
+            for (int i = 0; i < first; i++)
+            {
+                final String label = name.getLabel(i);
+                starts[i] = off;
+                writeUTF(label, 0, label.length());
+            }
+            if (parent != 0)
+            {
+                writeByte((parent >> 8) | 0xC0);
+                writeByte(parent & 0xFF);
+            }
+            else
             {
                 writeByte(0);
-                return;
             }
-            if(useCompression && USE_DOMAIN_NAME_COMPRESSION){
-                Integer offset = (Integer) names.get(name);
-                if (offset != null)
-                {
-                    int val = offset.intValue();
+        }
+        catch (IOException e)
+        {
+            off = save;
+            throw e;
+        }
 
-                    if (val > off)
-                    {
-                        logger.log(Level.WARNING, "DNSOutgoing writeName failed val=" + val + " name=" + name);
-                    }
+        if (useCompression)
+        {
+            for (int i = first - 1; i >= 0; i--)
+            {
+                if (starts[i] > 0x3FFF)
+                {
+                    break;
+                }
+                names.add(name.getLabel(i), parent, starts[i]);
+                parent = starts[i];
+            }
+        }
+    }
 
-                    writeByte((val >> 8) | 0xC0);
-                    writeByte(val & 0xFF);
-                    return;
+    /**
+     * Check if the label written at an offset is the given label. Encodes
+     * the label the way writeUTF() does, without building a byte array.
+     */
+    boolean labelEquals(int at, String label)
+    {
+        int len = data[at] & 0xFF;
+        int p = at + 1;
+        final int end = p + len;
+        for (int i = 0, n = label.length(); i < n; i++)
+        {
+            final int ch = label.charAt(i);
+            if ((ch >= 0x0001) && (ch <= 0x007F))
+            {
+                if ((p >= end) || (data[p++] != (byte) ch))
+                {
+                    return false;
                 }
-                names.put(name, Integer.valueOf(off+""));
             }
-            writeUTF(name, 0, n);
-            name = name.substring(n);
-            if (name.startsWith("."))
+            else
             {
-                name = name.substring(1);
+                if (ch > 0x07FF)
+                {
+                    if ((p + 3 > end) || (data[p++] != (byte) (0xE0 | ((ch >> 12) & 0x0F)))
+                        || (data[p++] != (byte) (0x80 | ((ch >> 6) & 0x3F)))
+                        || (data[p++] != (byte) (0x80 | ((ch >> 0) & 0x3F))))
+                    {
+                        return false;
+                    }
+                }
+                else
+                {
+                    if ((p + 2 > end) || (data[p++] != (byte) (0xC0 | ((ch >> 6) & 0x1F)))
+                        || (data[p++] != (byte) (0x80 | ((ch >> 0) & 0x3F))))
+                    {
+                        return false;
+                    }
+                }
             }
         }
+        return p == end;
     }
 
     void writeQuestion(DNSQuestion question) throws IOException
     {
-        writeName(question.name);
-        writeShort(question.type);
-        writeShort(question.clazz);
+        int save = off;
+        try
+        {
+            writeName(question.dnsName);
+            writeShort(question.type);
+            writeShort(question.clazz | ((question.unique && isQuery()) ? DNSConstants.CLASS_UNICAST_RESPONSE : 0));
+        }
+        catch (IOException e)
+        {
+            off = save;
+            throw e;
+        }
     }
 
     void writeRecord(DNSRecord rec, long now) throws IOException
     {
+        if ((rec.template != null) && writeTemplate(rec.template, rec, now))
+        {
+            return;
+        }
         int save = off;
         try
         {
-            writeName(rec.name);
+            writeName(rec.dnsName);
             writeShort(rec.type);
             writeShort(rec.clazz | ((rec.unique && multicast) ? DNSConstants.CLASS_UNIQUE : 0));
             writeInt((now == 0) ? rec.getTtl() : rec.getRemainingTTL(now));
@@ -307,6 +439,43 @@ public final class DNSOutgoing
         }
     }
 
+    /**
+     * Write a record by copying its template. Returns false if the
+     * compression pointers of the template cannot be moved to the current
+     * offset, in which case nothing is written.
+     */
+    private boolean writeTemplate(WireTemplate template, DNSRecord rec, long now) throws IOException
+    {
+        final byte[] bytes = template.data;
+        final int shift = off - WireTemplate.BASE;
+        for (int i = 0; i < template.pointers.length; i++)
+        {
+            final int at = template.pointers[i];
+            if (((((bytes[at] & 0x3F) << 8) | (bytes[at + 1] & 0xFF)) + shift) > 0x3FFF)
+            {
+                return false;
+            }
+        }
+        if (off + bytes.length > data.length)
+        {
+            throw new IOException("buffer full");
+        }
+        final int start = off;
+        System.arraycopy(bytes, 0, data, start, bytes.length);
+        off = start + template.classOffset;
+        writeShort(rec.clazz | ((rec.unique && multicast) ? DNSConstants.CLASS_UNIQUE : 0));
+        writeInt((now == 0) ? rec.getTtl() : rec.getRemainingTTL(now));
+        for (int i = 0; i < template.pointers.length; i++)
+        {
+            off = start + template.pointers[i];
+            final int target = (((bytes[off - start] & 0x3F) << 8) | (bytes[off - start + 1] & 0xFF)) + shift;
+            writeByte((target >> 8) | 0xC0);
+            writeByte(target & 0xFF);
+        }
+        off = start + bytes.length;
+        return true;
+    }
+
     /**
      * Finish the message before sending it off.
      */
@@ -324,6 +493,16 @@ public final class DNSOutgoing
         off = save;
     }
 
+    /**
+     * Returns a view of the finished message, from its start to its end.
+     */
+    ByteBuffer getBuffer()
+    {
+        buffer.limit(off);
+        buffer.position(0);
+        return buffer;
+    }
+
     boolean isQuery()
     {
         return (flags & DNSConstants.FLAGS_QR_MASK) == DNSConstants.FLAGS_QR_QUERY;
@@ -384,11 +563,116 @@ public final class DNSOutgoing
             buf.append(",additionals=");
             buf.append(numAdditionals);
         }
-        buf.append(",\nnames=" + names);
+        buf.append(",\nnames=" + names.size());
         buf.append(",\nauthorativeAnswers=" + authorativeAnswers);
 
         buf.append("]");
         return buf.toString();
     }
 
+    /**
+     * The compression table. Maps a label and the offset of the name that
+     * follows it (0 for the root) to the offset the label was written at.
+     * This is a trie of the names in the message, stored in open addressed
+     * primitive arrays. The labels themselves are not stored, they are
+     * compared against the message data.
+     */
+    private static final class NameTable
+    {
+        private int[] hashes = new int[64];
+        private int[] parents = new int[64];
+        private int[] offsets = new int[64];
+        private int size;
+
+        int size()
+        {
+            return size;
+        }
+
+        /**
+         * Returns the offset a label was written at, followed by the name at
+         * the given parent offset, or 0 if there is no such label.
+         */
+        int find(DNSOutgoing out, String label, int parent)
+        {
+            final int hash = hash(label);
+            final int mask = offsets.length - 1;
+            for (int i = slot(hash, parent) & mask; offsets[i] != 0; i = (i + 1) & mask)
+            {
+                if ((hashes[i] == hash) && (parents[i] == parent) && out.labelEquals(offsets[i], label))
+                {
+                    return offsets[i];
+                }
+            }
+            return 0;
+        }
+
+        void add(String label, int parent, int offset)
+        {
+            if (2 * (size + 1) > offsets.length)
+            {
+                grow();
+            }
+            put(hash(label), parent, offset);
+        }
+
+        private void put(int hash, int parent, int offset)
+        {
+            final int mask = offsets.length - 1;
+            int i = slot(hash, parent) & mask;
+            while (offsets[i] != 0)
+            {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            parents[i] = parent;
+            offsets[i] = offset;
+            size++;
+        }
+
+        private void grow()
+        {
+            final int[] oldHashes = hashes;
+            final int[] oldParents = parents;
+            final int[] oldOffsets = offsets;
+            hashes = new int[2 * oldOffsets.length];
+            parents = new int[2 * oldOffsets.length];
+            offsets = new int[2 * oldOffsets.length];
+            size = 0;
+            for (int i = 0; i < oldOffsets.length; i++)
+            {
+                if (oldOffsets[i] != 0)
+                {
+                    put(oldHashes[i], oldParents[i], oldOffsets[i]);
+                }
+            }
+        }
+
+        /**
+         * Forget all labels, keeping the arrays for the next message.
+         */
+        void clear()
+        {
+            Arrays.fill(offsets, 0);
+            size = 0;
+        }
+
+        private static int hash(String label)
+        {
+            int h = 0;
+            for (int i = 0, n = label.length(); i < n; i++)
+            {
+                h = 31 * h + label.charAt(i);
+            }
+            return h;
+        }
+
+        private static int slot(int hash, int parent)
+        {
+            int h = 31 * hash + parent;
+            h ^= (h >>> 16);
+            return h * 0x85EBCA6B;
+        }
+    }
+
 }
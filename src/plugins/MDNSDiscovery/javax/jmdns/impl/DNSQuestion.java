@@ -25,13 +25,23 @@ public final class DNSQuestion extends DNSEntry
         super(name, type, clazz);
     }
 
+    /**
+     * True if the question asks for a unicast response, see RFC 6762,
+     * section 5.4. This is the top bit of the class, like the unique bit of
+     * a record.
+     */
+    public boolean isUnicastResponse()
+    {
+        return unique;
+    }
+
     /**
      * Check if this question is answered by a given DNS record.
      */
     boolean answeredBy(DNSRecord rec)
     {
         return (clazz == rec.clazz) && ((type == rec.type) || (type == DNSConstants.TYPE_ANY)) &&
-            name.equals(rec.name);
+            dnsName.equalsIgnoreCase(rec.dnsName);
     }
 
     /**
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,6 +27,30 @@ public abstract class DNSRecord extends DNSEntry
     private static Logger logger = Logger.getLogger(DNSRecord.class.getName());
     private int ttl;
     private long created;
+
+    /**
+     * The time this record is due in the expiry heap of the cache, or 0 if
+     * it is not in the heap. Only used by DNSCache, under its expiry lock.
+     */
+    long scheduledExpiration;
+
+    /**
+     * Set when the record is looked up in the cache, cleared by the clock
+     * hand of the cache. See DNSCache.
+     */
+    volatile boolean referenced;
+
+    /**
+     * The creation time this record is scheduled to be refreshed for, or 0
+     * if it is not scheduled. Only used by RefreshQueue, under its lock.
+     */
+    long refreshCreated;
+
+    /**
+     * The wire format of this record, for records that are written often
+     * and never change, see preEncode(). Null for other records.
+     */
+    WireTemplate template;
     
     /**
      * This source is mainly for debugging purposes, should be the address that
@@ -59,11 +84,26 @@ public abstract class DNSRecord extends DNSEntry
         return super.equals(other) && sameValue((DNSRecord) other);
     }
 
+    /**
+     * Includes the value of the record, so that records with the same
+     * name, type and class but different data do not collide.
+     */
+    public int hashCode()
+    {
+        return 31 * super.hashCode() + valueHashCode();
+    }
+
     /**
      * True if this record has the same value as some other record.
      */
     abstract boolean sameValue(DNSRecord other);
 
+    /**
+     * Returns a hash code of the value of this record, consistent with
+     * sameValue().
+     */
+    abstract int valueHashCode();
+
     /**
      * True if this record has the same type as some other record.
      */
@@ -98,23 +138,8 @@ public abstract class DNSRecord extends DNSEntry
      */
     boolean suppressedBy(DNSIncoming msg)
     {
-        try
-        {
-            for (int i = msg.numAnswers; i-- > 0;)
-            {
-                if (suppressedBy((DNSRecord) msg.answers.get(i)))
-                {
-                    return true;
-                }
-            }
-            return false;
-        }
-        catch (ArrayIndexOutOfBoundsException e)
-        {
-            logger.log(Level.WARNING, "suppressedBy() message " + msg + " exception ", e);
-            // msg.print(true);
-            return false;
-        }
+        final DNSRecord known = msg.getKnownAnswer(this);
+        return (known != null) && suppressedBy(known);
     }
 
     /**
@@ -139,6 +164,14 @@ public abstract class DNSRecord extends DNSEntry
         return created + (percent * ttl * 10L);
     }
 
+    /**
+     * Get the time this record was received, or its TTL last reset.
+     */
+    long getCreated()
+    {
+        return created;
+    }
+
     /**
      * Get the remaining TTL for this record.
      */
@@ -174,11 +207,37 @@ public abstract class DNSRecord extends DNSEntry
         ttl = other.ttl;
     }
 
+    /**
+     * Make the record expire one second from now. This is what happens to
+     * a record that is replaced by one with the cache-flush bit.
+     */
+    void setWillExpireSoon(long now)
+    {
+        created = now;
+        ttl = 1;
+    }
+
+    /**
+     * Encode this record once, so that DNSOutgoing copies the bytes instead
+     * of writing the record again every time. Only for records whose data
+     * does not change, and before the record is shared with other threads.
+     */
+    void preEncode()
+    {
+        template = WireTemplate.encode(this);
+    }
+
     /**
      * Write this record into an outgoing message.
      */
     abstract void write(DNSOutgoing out) throws IOException;
 
+    /**
+     * Returns the approximate number of bytes used by the data of this
+     * record, for the memory accounting of the cache.
+     */
+    abstract int getDataSize();
+
     /**
      * Address record.
      */
@@ -231,19 +290,12 @@ public abstract class DNSRecord extends DNSEntry
                     // If we have a type AAAA records we should answer with a IPv6 address
                     if (addr instanceof Inet4Address)
                     {
+                        // Answer with the IPv4-mapped IPv6 address ::ffff:a.b.c.d
                         byte[] tempbuffer = buffer;
                         buffer = new byte[16];
-                        for (int i = 0; i < 16; i++)
-                        {
-                            if (i < 11)
-                            {
-                                buffer[i] = tempbuffer[i - 12];
-                            }
-                            else
-                            {
-                                buffer[i] = 0;
-                            }
-                        }
+                        buffer[10] = (byte) 0xFF;
+                        buffer[11] = (byte) 0xFF;
+                        System.arraycopy(tempbuffer, 0, buffer, 12, 4);
                     }
                 }
                 int length = buffer.length;
@@ -258,12 +310,23 @@ public abstract class DNSRecord extends DNSEntry
 
         boolean sameName(DNSRecord other)
         {
-            return name.equalsIgnoreCase(((Address) other).name);
+            return dnsName.equalsIgnoreCase(((Address) other).dnsName);
         }
 
         boolean sameValue(DNSRecord other)
         {
-            return addr.equals(((Address) other).getAddress());
+            // the address is null if the record data could not be decoded
+            return (addr != null) ? addr.equals(((Address) other).getAddress()) : (((Address) other).getAddress() == null);
+        }
+
+        int valueHashCode()
+        {
+            return (addr != null) ? addr.hashCode() : 0;
+        }
+
+        int getDataSize()
+        {
+            return 32 + ((addr != null) ? addr.getAddress().length : 0);
         }
 
         InetAddress getAddress()
@@ -328,14 +391,15 @@ public abstract class DNSRecord extends DNSEntry
         }
 
         /**
-         * Does the necessary actions, when this as a query.
+         * Does the necessary actions, when this as a query. An address of any
+         * of the interfaces we serve is not a conflict.
          */
         boolean handleQuery(JmDNSImpl dns, long expirationTime)
         {
             DNSRecord.Address dnsAddress = dns.getLocalHost().getDNSAddressRecord(this);
             if (dnsAddress != null)
             {
-                if (dnsAddress.sameType(this) && dnsAddress.sameName(this) && (!dnsAddress.sameValue(this)))
+                if (dnsAddress.sameType(this) && dnsAddress.sameName(this) && (!dns.isLocalAddress(this.addr)))
                 {
                     logger.finer("handleQuery() Conflicting probe detected. dns state " + dns.getState() + " lex compare " + lexCompare(dnsAddress));
                     // Tie-breaker test
@@ -365,7 +429,7 @@ public abstract class DNSRecord extends DNSEntry
             DNSRecord.Address dnsAddress = dns.getLocalHost().getDNSAddressRecord(this);
             if (dnsAddress != null)
             {
-                if (dnsAddress.sameType(this) && dnsAddress.sameName(this) && (!dnsAddress.sameValue(this)))
+                if (dnsAddress.sameType(this) && dnsAddress.sameName(this) && (!dns.isLocalAddress(this.addr)))
                 {
                     logger.finer("handleResponse() Denial detected");
 
@@ -404,12 +468,12 @@ public abstract class DNSRecord extends DNSEntry
     public static class Pointer extends DNSRecord
     {
         private static Logger logger = Logger.getLogger(Pointer.class.getName());
-        String alias;
+        DNSName alias;
 
         public Pointer(String name, int type, int clazz, int ttl, String alias)
         {
             super(name, type, clazz, ttl);
-            this.alias = alias;
+            this.alias = DNSName.get(alias);
         }
 
         void write(DNSOutgoing out) throws IOException
@@ -419,7 +483,17 @@ public abstract class DNSRecord extends DNSEntry
 
         boolean sameValue(DNSRecord other)
         {
-            return alias.equals(((Pointer) other).alias);
+            return alias == ((Pointer) other).alias;
+        }
+
+        int valueHashCode()
+        {
+            return alias.hashCode();
+        }
+
+        int getDataSize()
+        {
+            return 2 * alias.toString().length();
         }
 
         boolean handleQuery(JmDNSImpl dns, long expirationTime)
@@ -438,7 +512,7 @@ public abstract class DNSRecord extends DNSEntry
 
         String getAlias()
         {
-            return alias;
+            return alias.toString();
         }
 
         DNSOutgoing addAnswer(JmDNSImpl dns, DNSIncoming in, InetAddress addr, int port, DNSOutgoing out) throws IOException
@@ -448,7 +522,7 @@ public abstract class DNSRecord extends DNSEntry
 
         public String toString()
         {
-            return toString(alias);
+            return toString(alias.toString());
         }
     }
 
@@ -468,6 +542,11 @@ public abstract class DNSRecord extends DNSEntry
             out.writeBytes(text, 0, text.length);
         }
 
+        int getDataSize()
+        {
+            return 16 + text.length;
+        }
+
         boolean sameValue(DNSRecord other)
         {
             Text txt = (Text) other;
@@ -485,6 +564,11 @@ public abstract class DNSRecord extends DNSEntry
             return true;
         }
 
+        int valueHashCode()
+        {
+            return Arrays.hashCode(text);
+        }
+
         boolean handleQuery(JmDNSImpl dns, long expirationTime)
         {
             // Nothing to do (?)
@@ -497,7 +581,7 @@ public abstract class DNSRecord extends DNSEntry
             // Nothing to do (?)
             // Shouldn't we care if we get a conflict at this level?
             /*
-                         ServiceInfo info = (ServiceInfo) dns.services.get(name.toLowerCase());
+                         ServiceInfo info = (ServiceInfo) dns.services.get(getKey());
                          if (info != null) {
                                  if (! Arrays.equals(text,info.text)) {
                                          info.revertState();
@@ -527,7 +611,7 @@ public abstract class DNSRecord extends DNSEntry
         int priority;
         int weight;
         int port;
-        String server;
+        DNSName server;
 
         public Service(String name, int type, int clazz, int ttl, int priority, int weight, int port, String server)
         {
@@ -535,7 +619,12 @@ public abstract class DNSRecord extends DNSEntry
             this.priority = priority;
             this.weight = weight;
             this.port = port;
-            this.server = server;
+            this.server = DNSName.get(server);
+        }
+
+        String getServer()
+        {
+            return server.toString();
         }
 
         void write(DNSOutgoing out) throws IOException
@@ -546,7 +635,7 @@ public abstract class DNSRecord extends DNSEntry
             if(DNSIncoming.USE_DOMAIN_NAME_FORMAT_FOR_SRV_TARGET){
                 out.writeName(server, false);
             } else {
-                out.writeUTF(server, 0, server.length());
+                out.writeUTF(server.toString(), 0, server.toString().length());
 
                 // add a zero byte to the end just to be safe, this is the strange form 
                 // used by the BonjourConformanceTest
@@ -567,7 +656,7 @@ public abstract class DNSRecord extends DNSEntry
                 dout.writeShort(priority);
                 dout.writeShort(weight);
                 dout.writeShort(port);
-                dout.write(server.getBytes("UTF8"));
+                dout.write(server.toString().getBytes("UTF8"));
                 dout.close();
                 return bout.toByteArray();
             }
@@ -598,17 +687,27 @@ public abstract class DNSRecord extends DNSEntry
             return thisBytes.length - thatBytes.length;
         }
 
+        int getDataSize()
+        {
+            return 12 + 2 * server.toString().length();
+        }
+
         boolean sameValue(DNSRecord other)
         {
             Service s = (Service) other;
-            return (priority == s.priority) && (weight == s.weight) && (port == s.port) && server.equals(s.server);
+            return (priority == s.priority) && (weight == s.weight) && (port == s.port) && (server == s.server);
+        }
+
+        int valueHashCode()
+        {
+            return ((31 * priority + weight) * 31 + port) * 31 + server.hashCode();
         }
 
         boolean handleQuery(JmDNSImpl dns, long expirationTime)
         {
-            ServiceInfoImpl info = (ServiceInfoImpl) dns.getServices().get(name.toLowerCase());
+            ServiceInfoImpl info = (ServiceInfoImpl) dns.getServices().get(getKey());
             if (info != null
-                && (port != info.port || !server.equalsIgnoreCase(dns.getLocalHost().getName())))
+                && (port != info.port || !getServer().equalsIgnoreCase(dns.getLocalHost().getName())))
             {
                 logger.finer("handleQuery() Conflicting probe detected from: " + getRecordSource());
                 DNSRecord.Service localService = new DNSRecord.Service(info.getQualifiedName(), DNSConstants.TYPE_SRV,
@@ -646,10 +745,11 @@ public abstract class DNSRecord extends DNSEntry
                 if (info.getState().isProbing() && comparison > 0)
                 {
                     // We lost the tie break
-                    String oldName = info.getQualifiedName().toLowerCase();
+                    String oldName = info.getKey();
                     info.setName(dns.incrementName(info.getName()));
                     dns.getServices().remove(oldName);
-                    dns.getServices().put(info.getQualifiedName().toLowerCase(), info);
+                    dns.getServices().put(info.getKey(), info);
+                    dns.interestsChanged();
                     logger.finer("handleQuery() Lost tie break: new unique name chosen:" + info.getName());
 
                     // We revert the state to start probing again with the new name
@@ -670,18 +770,19 @@ public abstract class DNSRecord extends DNSEntry
 
         boolean handleResponse(JmDNSImpl dns)
         {
-            ServiceInfoImpl info = (ServiceInfoImpl) dns.getServices().get(name.toLowerCase());
+            ServiceInfoImpl info = (ServiceInfoImpl) dns.getServices().get(getKey());
             if (info != null
-                && (port != info.port || !server.equalsIgnoreCase(dns.getLocalHost().getName())))
+                && (port != info.port || !getServer().equalsIgnoreCase(dns.getLocalHost().getName())))
             {
                 logger.finer("handleResponse() Denial detected");
 
                 if (info.getState().isProbing())
                 {
-                    String oldName = info.getQualifiedName().toLowerCase();
+                    String oldName = info.getKey();
                     info.setName(dns.incrementName(info.getName()));
                     dns.getServices().remove(oldName);
-                    dns.getServices().put(info.getQualifiedName().toLowerCase(), info);
+                    dns.getServices().put(info.getKey(), info);
+                    dns.interestsChanged();
                     logger.finer("handleResponse() New unique name chose:" + info.getName());
 
                 }
@@ -693,16 +794,17 @@ public abstract class DNSRecord extends DNSEntry
 
         DNSOutgoing addAnswer(JmDNSImpl dns, DNSIncoming in, InetAddress addr, int port, DNSOutgoing out) throws IOException
         {
-            ServiceInfoImpl info = (ServiceInfoImpl) dns.getServices().get(name.toLowerCase());
+            ServiceInfoImpl info = (ServiceInfoImpl) dns.getServices().get(getKey());
             if (info != null)
             {
-                if (this.port == info.port != server.equals(dns.getLocalHost().getName()))
+                if (this.port == info.port != getServer().equals(dns.getLocalHost().getName()))
                 {
                     return dns.addAnswer(in, addr, port, out,
                         new DNSRecord.Service(info.getQualifiedName(), DNSConstants.TYPE_SRV,
                             DNSConstants.CLASS_IN | DNSConstants.CLASS_UNIQUE,
                             DNSConstants.DNS_TTL, info.priority,
-                            info.weight, info.port, dns.getLocalHost().getName()));
+                            info.weight, info.port, dns.getLocalHost().getName()),
+                        dns.getLocalHost());
                 }
             }
             return out;
@@ -710,7 +812,7 @@ public abstract class DNSRecord extends DNSEntry
 
         public String toString()
         {
-            return toString(server + ":" + port);
+            return toString(getServer() + ":" + port);
         }
     }
 
@@ -0,0 +1,44 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+/**
+ * A task that runs once or repeatedly on a DNSTaskScheduler. This takes the
+ * place of java.util.TimerTask for the tasks of JmDNS.
+ * <p/>
+ * Like a TimerTask, a task can only be scheduled once, and a cancelled task
+ * does not run again. A repeated task runs with a fixed delay between the
+ * end of one run and the start of the next.
+ */
+public abstract class DNSTask implements Runnable
+{
+    /**
+     * The scheduler the task was scheduled on, or null.
+     */
+    volatile DNSTaskScheduler scheduler;
+
+    /**
+     * Used by the scheduler to keep track of the task.
+     */
+    Object handle;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Cancel the task. Returns true if this prevented one or more runs.
+     */
+    public boolean cancel()
+    {
+        final boolean wasCancelled = cancelled;
+        cancelled = true;
+        final DNSTaskScheduler s = scheduler;
+        return !wasCancelled && (s != null) && s.remove(this);
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+}
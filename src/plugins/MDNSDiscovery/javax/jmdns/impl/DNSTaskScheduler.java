@@ -0,0 +1,66 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+/**
+ * Runs the tasks of a JmDNS instance: probing, announcing, responding,
+ * resolving and cache maintenance. The default is a HashedWheelScheduler,
+ * see JmDNSImpl.createScheduler().
+ * <p/>
+ * A task that throws an exception must not stop the scheduler.
+ */
+public interface DNSTaskScheduler
+{
+    /**
+     * Run a task once, after a delay in milliseconds.
+     *
+     * @throws IllegalStateException If the task was already scheduled or
+     *             cancelled, or the scheduler was cancelled.
+     */
+    void schedule(DNSTask task, long delay);
+
+    /**
+     * Run a task after a delay, and then repeatedly with a period in
+     * milliseconds between the end of a run and the start of the next one.
+     *
+     * @throws IllegalStateException If the task was already scheduled or
+     *             cancelled, or the scheduler was cancelled.
+     */
+    void schedule(DNSTask task, long delay, long period);
+
+    /**
+     * Remove a cancelled task. Called by DNSTask.cancel(). Returns true if
+     * the task would have run again.
+     */
+    boolean remove(DNSTask task);
+
+    /**
+     * Stop the scheduler, and discard the tasks that have not run. A task
+     * that is running is not interrupted.
+     */
+    void cancel();
+
+    /**
+     * Returns the number of tasks waiting to run.
+     */
+    int getPendingCount();
+
+    /**
+     * Returns the number of task runs so far.
+     */
+    long getRunCount();
+
+    /**
+     * Returns the longest time a task started after it was due, in
+     * milliseconds.
+     */
+    long getMaxLateness();
+
+    /**
+     * Returns the average time tasks started after they were due, in
+     * milliseconds.
+     */
+    long getAverageLateness();
+}
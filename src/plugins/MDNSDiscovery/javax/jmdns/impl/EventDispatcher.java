@@ -0,0 +1,95 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the events caused by received records to the service listeners
+ * and service type listeners.
+ * <p/>
+ * The events are delivered one by one, in the order they were raised, on a
+ * thread of their own. This way a slow listener holds up the delivery of
+ * further events, but not the handling of received datagrams.
+ */
+class EventDispatcher implements Runnable
+{
+    static Logger logger = Logger.getLogger(EventDispatcher.class.getName());
+
+    /**
+     * Events waiting to be delivered.
+     */
+    private final BlockingQueue queue = new LinkedBlockingQueue();
+
+    private Thread thread;
+
+    private volatile boolean closed = false;
+
+    void start()
+    {
+        thread = new Thread(this, "JmDNS.EventDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an event for delivery.
+     */
+    void dispatch(Runnable event)
+    {
+        if (!closed)
+        {
+            queue.offer(event);
+        }
+    }
+
+    /**
+     * Returns the number of events waiting to be delivered.
+     */
+    int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Stops the dispatcher thread. Events not delivered yet are discarded.
+     */
+    void close()
+    {
+        closed = true;
+        if (thread != null && thread != Thread.currentThread())
+        {
+            thread.interrupt();
+        }
+        queue.clear();
+    }
+
+    public void run()
+    {
+        while (!closed)
+        {
+            Runnable event;
+            try
+            {
+                event = (Runnable) queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+            try
+            {
+                event.run();
+            }
+            catch (RuntimeException e)
+            {
+                logger.log(Level.WARNING, "run() listener exception ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A task scheduler based on a hashed timing wheel. Time is divided into
+ * ticks, and the wheel has one bucket per tick of a turn. A task goes into
+ * the bucket of the tick it is due at, with the number of turns left before
+ * it is due. Scheduling and cancelling a task take constant time, and a
+ * cancelled task is unlinked from its bucket right away.
+ * <p/>
+ * The tasks run on the thread of the scheduler, one after the other, at the
+ * first tick after they are due. A task that throws an exception is logged,
+ * and the other tasks are not affected. The thread sleeps until the next
+ * tick that has tasks, or until a task is scheduled.
+ */
+final class HashedWheelScheduler implements DNSTaskScheduler, Runnable
+{
+    private static Logger logger = Logger.getLogger(HashedWheelScheduler.class.getName());
+
+    /**
+     * The duration of a tick, in milliseconds.
+     */
+    private final long tick;
+    /**
+     * The first task of each bucket. Guarded by this, as are all buckets.
+     */
+    private final Node[] wheel;
+    private final int mask;
+    /**
+     * The start of tick 0, from System.nanoTime().
+     */
+    private final long origin;
+    /**
+     * The next tick to process.
+     */
+    private long nextTick;
+    private int pending;
+    private boolean cancelled;
+
+    /**
+     * Statistics, only written by the thread of the scheduler.
+     */
+    private volatile long runCount;
+    private volatile long totalLateness;
+    private volatile long maxLateness;
+
+    /**
+     * Create a scheduler with the given tick in milliseconds and number of
+     * ticks per turn, which is rounded up to a power of two, and start its
+     * thread.
+     */
+    HashedWheelScheduler(String name, long tick, int size)
+    {
+        int length = 1;
+        while (length < size)
+        {
+            length <<= 1;
+        }
+        this.tick = tick;
+        this.wheel = new Node[length];
+        this.mask = length - 1;
+        this.origin = System.nanoTime();
+        final Thread thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void schedule(DNSTask task, long delay)
+    {
+        add(task, delay, 0);
+    }
+
+    public void schedule(DNSTask task, long delay, long period)
+    {
+        if (period <= 0)
+        {
+            throw new IllegalArgumentException("Non-positive period.");
+        }
+        add(task, delay, period);
+    }
+
+    private synchronized void add(DNSTask task, long delay, long period)
+    {
+        if (delay < 0)
+        {
+            throw new IllegalArgumentException("Negative delay.");
+        }
+        if (cancelled)
+        {
+            throw new IllegalStateException("Scheduler already cancelled.");
+        }
+        if ((task.scheduler != null) || task.isCancelled())
+        {
+            throw new IllegalStateException("Task already scheduled or cancelled");
+        }
+        final Node node = new Node(task, period);
+        task.handle = node;
+        task.scheduler = this;
+        insert(node, now() + delay);
+        notify();
+    }
+
+    public synchronized boolean remove(DNSTask task)
+    {
+        final Node node = (Node) task.handle;
+        if ((node == null) || (task.scheduler != this))
+        {
+            return false;
+        }
+        final boolean result = (node.bucket >= 0) || (node.period > 0);
+        if (node.bucket >= 0)
+        {
+            unlink(node);
+        }
+        return result;
+    }
+
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        for (int i = 0; i < wheel.length; i++)
+        {
+            wheel[i] = null;
+        }
+        pending = 0;
+        notify();
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return pending;
+    }
+
+    public long getRunCount()
+    {
+        return runCount;
+    }
+
+    public long getMaxLateness()
+    {
+        return maxLateness;
+    }
+
+    public long getAverageLateness()
+    {
+        final long count = runCount;
+        return (count > 0) ? totalLateness / count : 0;
+    }
+
+    public void run()
+    {
+        final List due = new ArrayList();
+        while (true)
+        {
+            synchronized (this)
+            {
+                try
+                {
+                    while (!cancelled && !collect(due))
+                    {
+                        final long wait = nextDueTick() * tick - now();
+                        if (wait > 0)
+                        {
+                            wait(wait);
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    cancel();
+                }
+                if (cancelled)
+                {
+                    return;
+                }
+            }
+            for (int i = 0; i < due.size(); i++)
+            {
+                run((Node) due.get(i));
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Process the ticks that have passed. Returns true if tasks are due.
+     */
+    private boolean collect(List due)
+    {
+        final long current = now() / tick;
+        while (nextTick <= current)
+        {
+            Node node = wheel[(int) (nextTick & mask)];
+            while (node != null)
+            {
+                final Node next = node.next;
+                if (node.rounds > 0)
+                {
+                    node.rounds--;
+                }
+                else
+                {
+                    unlink(node);
+                    due.add(node);
+                }
+                node = next;
+            }
+            nextTick++;
+        }
+        return !due.isEmpty();
+    }
+
+    /**
+     * Returns the next tick whose bucket has tasks, or a tick a turn away if
+     * there are none.
+     */
+    private long nextDueTick()
+    {
+        if (pending == 0)
+        {
+            return Long.MAX_VALUE / tick;
+        }
+        for (long t = nextTick; t < nextTick + wheel.length; t++)
+        {
+            if (wheel[(int) (t & mask)] != null)
+            {
+                return t;
+            }
+        }
+        return nextTick + wheel.length;
+    }
+
+    private void run(Node node)
+    {
+        final DNSTask task = node.task;
+        if (task.isCancelled())
+        {
+            return;
+        }
+        final long lateness = Math.max(0, now() - node.time);
+        totalLateness += lateness;
+        maxLateness = Math.max(maxLateness, lateness);
+        runCount++;
+        try
+        {
+            task.run();
+        }
+        catch (Throwable e)
+        {
+            logger.log(Level.WARNING, "run() exception in " + task, e);
+        }
+        if (node.period > 0)
+        {
+            synchronized (this)
+            {
+                if (!task.isCancelled() && !cancelled)
+                {
+                    insert(node, now() + node.period);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds since the start of tick 0.
+     */
+    private long now()
+    {
+        return (System.nanoTime() - origin) / 1000000L;
+    }
+
+    private void insert(Node node, long time)
+    {
+        if (pending == 0)
+        {
+            // Skip the empty ticks since the scheduler went idle
+            nextTick = Math.max(nextTick, now() / tick);
+        }
+        final long target = Math.max(nextTick, (time + tick - 1) / tick);
+        node.time = time;
+        node.rounds = (target - nextTick) / wheel.length;
+        node.bucket = (int) (target & mask);
+        node.prev = null;
+        node.next = wheel[node.bucket];
+        if (node.next != null)
+        {
+            node.next.prev = node;
+        }
+        wheel[node.bucket] = node;
+        pending++;
+    }
+
+    private void unlink(Node node)
+    {
+        if (node.prev != null)
+        {
+            node.prev.next = node.next;
+        }
+        else
+        {
+            wheel[node.bucket] = node.next;
+        }
+        if (node.next != null)
+        {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.bucket = -1;
+        pending--;
+    }
+
+    /**
+     * A scheduled task, linked into its bucket.
+     */
+    private static final class Node
+    {
+        final DNSTask task;
+        final long period;
+        /**
+         * The time the task is due, see now().
+         */
+        long time;
+        long rounds;
+        /**
+         * The bucket the node is in, or -1.
+         */
+        int bucket = -1;
+        Node prev;
+        Node next;
+
+        Node(DNSTask task, long period)
+        {
+            this.task = task;
+            this.period = period;
+        }
+    }
+}
@@ -7,16 +7,24 @@
 package plugins.MDNSDiscovery.javax.jmdns.impl;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * HostInfo information on the local host to be able to cope with change of addresses.
+ * <p/>
+ * JmDNS keeps one HostInfo for each network interface it serves. All of them
+ * share the host name of the first one, so that renaming the host after a
+ * conflict renames it on every interface.
  *
  * @version %I%, %G%
  * @author	Pierre Frisch, Werner Randelshofer
@@ -27,16 +35,38 @@ public class HostInfo
     protected String name;
     protected InetAddress address;
     protected NetworkInterface interfaze;
+    /**
+     * The IPv6 address announced in AAAA records, or null if the interface
+     * has none.
+     */
+    protected InetAddress address6;
+    /**
+     * The host info this one borrows its name from, or null if this host info
+     * owns its name.
+     */
+    private final HostInfo owner;
+    /**
+     * Snapshot of the addresses of the interface, used to tell on which
+     * link a datagram was received.
+     */
+    private final List interfaceAddresses;
     /**
      * This is used to create a unique name for the host name.
      */
     private int hostNameCount;
+    /**
+     * The address records, built on first use. Rebuilt when the host name
+     * has changed since.
+     */
+    private volatile DNSRecord.Address dns4AddressRecord;
+    private volatile DNSRecord.Address dns6AddressRecord;
 
     public HostInfo(InetAddress address, String name)
     {
         super();
         this.address = address;
         this.name = name;
+        this.owner = null;
         if (address != null)
         {
             try
@@ -49,11 +79,110 @@ public class HostInfo
                 logger.log(Level.WARNING, "LocalHostInfo() exception ", exception);
             }
         }
+        this.interfaceAddresses = getInterfaceAddresses(interfaze);
+        this.address6 = (address instanceof Inet6Address) ? address : getInet6Address(interfaceAddresses);
+    }
+
+    /**
+     * Creates the host info for an additional interface. The new host info
+     * shares the name of the owner.
+     */
+    HostInfo(InetAddress address, NetworkInterface interfaze, HostInfo owner)
+    {
+        super();
+        this.address = address;
+        this.interfaze = interfaze;
+        this.owner = owner;
+        this.interfaceAddresses = getInterfaceAddresses(interfaze);
+        this.address6 = (address instanceof Inet6Address) ? address : getInet6Address(interfaceAddresses);
+    }
+
+    private static List getInterfaceAddresses(NetworkInterface interfaze)
+    {
+        return (interfaze != null) ? new ArrayList(interfaze.getInterfaceAddresses()) : Collections.EMPTY_LIST;
+    }
+
+    /**
+     * Picks the IPv6 address to announce for an interface. A routable address
+     * is preferred over a link-local one.
+     */
+    private static InetAddress getInet6Address(List interfaceAddresses)
+    {
+        InetAddress linkLocal = null;
+        for (int i = 0; i < interfaceAddresses.size(); i++)
+        {
+            InetAddress candidate = ((InterfaceAddress) interfaceAddresses.get(i)).getAddress();
+            if (candidate instanceof Inet6Address)
+            {
+                if (!candidate.isLinkLocalAddress())
+                {
+                    return candidate;
+                }
+                if (linkLocal == null)
+                {
+                    linkLocal = candidate;
+                }
+            }
+        }
+        return linkLocal;
+    }
+
+    /**
+     * Creates a host info for every network interface which is up, supports
+     * multicast and has an IP address. The address of a host info is the
+     * IPv4 address of the interface, or its IPv6 address on an IPv6-only
+     * interface. The loopback interface is only used if there is no other
+     * interface. The first host info returned owns the host name, the others
+     * share it.
+     */
+    static List createHostInfos(String name) throws IOException
+    {
+        List hostInfos = new ArrayList();
+        HostInfo loopback = null;
+        for (Enumeration e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements();)
+        {
+            NetworkInterface interfaze = (NetworkInterface) e.nextElement();
+            if (!interfaze.isUp() || !interfaze.supportsMulticast())
+            {
+                continue;
+            }
+            InetAddress address = null;
+            for (Enumeration a = interfaze.getInetAddresses(); a.hasMoreElements() && !(address instanceof Inet4Address);)
+            {
+                InetAddress candidate = (InetAddress) a.nextElement();
+                if ((candidate instanceof Inet4Address) || (address == null))
+                {
+                    address = candidate;
+                }
+            }
+            if (address == null)
+            {
+                continue;
+            }
+            if (interfaze.isLoopback())
+            {
+                if (loopback == null)
+                {
+                    loopback = new HostInfo(address, name);
+                }
+                continue;
+            }
+            hostInfos.add(hostInfos.isEmpty() ? new HostInfo(address, name) : new HostInfo(address, interfaze, (HostInfo) hostInfos.get(0)));
+        }
+        if (hostInfos.isEmpty() && loopback != null)
+        {
+            hostInfos.add(loopback);
+        }
+        if (hostInfos.isEmpty())
+        {
+            throw new IOException("No multicast capable network interface");
+        }
+        return hostInfos;
     }
 
     public String getName()
     {
-        return name;
+        return (owner != null) ? owner.getName() : name;
     }
 
     public InetAddress getAddress()
@@ -66,8 +195,28 @@ public class HostInfo
         return interfaze;
     }
 
+    /**
+     * Returns the IPv6 address of the interface, or null if it has none.
+     */
+    public InetAddress getInet6Address()
+    {
+        return address6;
+    }
+
+    /**
+     * Check if the interface can be reached over IPv4.
+     */
+    boolean hasInet4Address()
+    {
+        return address instanceof Inet4Address;
+    }
+
     synchronized String incrementHostName()
     {
+        if (owner != null)
+        {
+            return owner.incrementHostName();
+        }
         hostNameCount++;
         int plocal = name.indexOf(".local.");
         int punder = name.lastIndexOf("-");
@@ -75,31 +224,61 @@ public class HostInfo
         return name;
     }
 
-    boolean shouldIgnorePacket(DatagramPacket packet)
+    /**
+     * Check if a datagram sent from the given address was received on the
+     * link of this interface, that is if the address lies in one of the
+     * subnets of the interface.
+     */
+    boolean isOnLink(InetAddress from)
     {
-        boolean result = false;
-        if (getAddress() != null)
+        if ((from instanceof Inet6Address) && from.isLinkLocalAddress() && (((Inet6Address) from).getScopeId() != 0))
         {
-            InetAddress from = packet.getAddress();
-            if (from != null)
+            return (interfaze != null) && (((Inet6Address) from).getScopeId() == interfaze.getIndex());
+        }
+        byte[] remote = from.getAddress();
+        for (int i = 0; i < interfaceAddresses.size(); i++)
+        {
+            InterfaceAddress interfaceAddress = (InterfaceAddress) interfaceAddresses.get(i);
+            byte[] local = interfaceAddress.getAddress().getAddress();
+            if ((local.length == remote.length) && samePrefix(local, remote, Math.min(interfaceAddress.getNetworkPrefixLength(), local.length * 8)))
             {
-                if (from.isLinkLocalAddress() && (!getAddress().isLinkLocalAddress()))
-                {
-                    // Ignore linklocal packets on regular interfaces, unless this is
-                    // also a linklocal interface. This is to avoid duplicates. This is
-                    // a terrible hack caused by the lack of an API to get the address
-                    // of the interface on which the packet was received.
-                    result = true;
-                }
-                if (from.isLoopbackAddress() && (!getAddress().isLoopbackAddress()))
-                {
-                    // Ignore loopback packets on a regular interface unless this is
-                    // also a loopback interface.
-                    result = true;
-                }
+                return true;
             }
         }
-        return result;
+        return false;
+    }
+
+    /**
+     * Check if an address is one of the addresses of this interface.
+     */
+    boolean hasAddress(InetAddress other)
+    {
+        for (int i = 0; i < interfaceAddresses.size(); i++)
+        {
+            if (((InterfaceAddress) interfaceAddresses.get(i)).getAddress().equals(other))
+            {
+                return true;
+            }
+        }
+        return (address != null) && address.equals(other);
+    }
+
+    private static boolean samePrefix(byte[] a, byte[] b, int prefixLength)
+    {
+        int i = 0;
+        for (; prefixLength >= 8; prefixLength -= 8, i++)
+        {
+            if (a[i] != b[i])
+            {
+                return false;
+            }
+        }
+        if (prefixLength > 0)
+        {
+            int mask = (0xFF << (8 - prefixLength)) & 0xFF;
+            return (a[i] & mask) == (b[i] & mask);
+        }
+        return true;
     }
 
     DNSRecord.Address getDNSAddressRecord(DNSRecord.Address address)
@@ -107,22 +286,46 @@ public class HostInfo
         return (DNSConstants.TYPE_AAAA == address.type ? getDNS6AddressRecord() : getDNS4AddressRecord());
     }
 
+    /**
+     * Returns the A record of this host, or null if it has no IPv4 address.
+     * The record is shared, and must not be modified.
+     */
     public DNSRecord.Address getDNS4AddressRecord()
     {
+        DNSRecord.Address result = dns4AddressRecord;
+        if ((result != null) && result.getName().equals(getName()))
+        {
+            return result;
+        }
         if ((getAddress() != null) &&
             ((getAddress() instanceof Inet4Address) ||
             ((getAddress() instanceof Inet6Address) && (((Inet6Address) getAddress()).isIPv4CompatibleAddress()))))
         {
-            return new DNSRecord.Address(getName(), DNSConstants.TYPE_A, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, getAddress());
+            result = new DNSRecord.Address(getName(), DNSConstants.TYPE_A, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, getAddress());
+            result.preEncode();
+            dns4AddressRecord = result;
+            return result;
         }
         return null;
     }
 
+    /**
+     * Returns the AAAA record of this host, or null if it has no IPv6
+     * address. The record is shared, and must not be modified.
+     */
     public DNSRecord.Address getDNS6AddressRecord()
     {
-        if ((getAddress() != null) && (getAddress() instanceof Inet6Address))
+        DNSRecord.Address result = dns6AddressRecord;
+        if ((result != null) && result.getName().equals(getName()))
+        {
+            return result;
+        }
+        if (getInet6Address() != null)
         {
-            return new DNSRecord.Address(getName(), DNSConstants.TYPE_AAAA, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, getAddress());
+            result = new DNSRecord.Address(getName(), DNSConstants.TYPE_AAAA, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, getInet6Address());
+            result.preEncode();
+            dns6AddressRecord = result;
+            return result;
         }
         return null;
     }
@@ -136,6 +339,11 @@ public class HostInfo
         buf.append(getInterface() != null ? getInterface().getDisplayName() : "???");
         buf.append(":");
         buf.append(getAddress() != null ? getAddress().getHostAddress() : "no address");
+        if ((getInet6Address() != null) && (getInet6Address() != getAddress()))
+        {
+            buf.append(", ");
+            buf.append(getInet6Address().getHostAddress());
+        }
         buf.append("]");
         return buf.toString();
     }
@@ -0,0 +1,202 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+/**
+ * The names JmDNS is interested in, used to drop irrelevant datagrams before
+ * their records are decoded.
+ * <p/>
+ * The index holds hashes of names, so a match may be a false positive, but
+ * a name that was added always matches. There are two kinds of names:
+ * <ul>
+ * <li>exact names, like the host name and the qualified names of services,
+ * which only match themselves.</li>
+ * <li>service types, which match themselves and every name one label
+ * below, like the qualified names of the instances of the type.</li>
+ * </ul>
+ * The hashes are computed over the lower case dotted form of a name, as
+ * returned by DNSIncoming.readName(), so that they can be computed from the
+ * wire bytes without decoding the name. An index is immutable once built.
+ */
+final class InterestIndex
+{
+    /**
+     * An index that matches every message.
+     */
+    static final InterestIndex EVERYTHING = new InterestIndex(true, null);
+
+    private final boolean everything;
+    private final String hostName;
+    private final HashSet names = new HashSet(16);
+    private final HashSet types = new HashSet(16);
+
+    /**
+     * @param everything
+     *      true if every message is of interest.
+     * @param hostName
+     *      the host name the index was built for.
+     */
+    InterestIndex(boolean everything, String hostName)
+    {
+        this.everything = everything;
+        this.hostName = hostName;
+    }
+
+    String getHostName()
+    {
+        return hostName;
+    }
+
+    void addName(String name)
+    {
+        if (name != null)
+        {
+            names.add(hash(name));
+        }
+    }
+
+    void addType(String type)
+    {
+        if (type != null)
+        {
+            types.add(hash(type));
+        }
+    }
+
+    /**
+     * Check if any question or record of a message may be about one of the
+     * names in the index. Does not decode the message.
+     */
+    boolean isInteresting(DNSIncoming msg)
+    {
+        if (everything)
+        {
+            return true;
+        }
+        for (int i = 0, n = msg.getQuestionCount(); i < n; i++)
+        {
+            if (matches(msg.questionNameHashes(i)))
+            {
+                return true;
+            }
+        }
+        for (int i = 0, n = msg.getRecordCount(); i < n; i++)
+        {
+            if (matches(msg.recordNameHashes(i)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param hashes
+     *      the hash of a name in the upper 32 bits, the hash of the name
+     *      without its first label in the lower 32 bits.
+     */
+    private boolean matches(long hashes)
+    {
+        if (hashes == DNSIncoming.NO_HASH)
+        {
+            return true;
+        }
+        int full = (int) (hashes >>> 32);
+        int parent = (int) hashes;
+        return names.contains(full) || types.contains(full) || types.contains(parent);
+    }
+
+    /**
+     * Hashes a name the way DNSIncoming hashes the wire form of a name.
+     * Only ASCII letters are folded to lower case, DNSIncoming does not
+     * hash names with other characters.
+     */
+    static int hash(String name)
+    {
+        int h = 0;
+        for (int i = 0, n = name.length(); i < n; i++)
+        {
+            h = 31 * h + toLower(name.charAt(i));
+        }
+        return h;
+    }
+
+    static int toLower(int ch)
+    {
+        return ((ch >= 'A') && (ch <= 'Z')) ? ch + ('a' - 'A') : ch;
+    }
+
+    /**
+     * Open addressing set of int values.
+     */
+    private static final class HashSet
+    {
+        private int[] slots;
+        private boolean[] used;
+        private int size;
+
+        HashSet(int capacity)
+        {
+            slots = new int[capacity];
+            used = new boolean[capacity];
+        }
+
+        void add(int value)
+        {
+            if (2 * (size + 1) > slots.length)
+            {
+                int[] oldSlots = slots;
+                boolean[] oldUsed = used;
+                slots = new int[2 * oldSlots.length];
+                used = new boolean[2 * oldSlots.length];
+                size = 0;
+                for (int i = 0; i < oldSlots.length; i++)
+                {
+                    if (oldUsed[i])
+                    {
+                        add(oldSlots[i]);
+                    }
+                }
+            }
+            int mask = slots.length - 1;
+            for (int i = mix(value) & mask;; i = (i + 1) & mask)
+            {
+                if (!used[i])
+                {
+                    used[i] = true;
+                    slots[i] = value;
+                    size++;
+                    return;
+                }
+                if (slots[i] == value)
+                {
+                    return;
+                }
+            }
+        }
+
+        boolean contains(int value)
+        {
+            int mask = slots.length - 1;
+            for (int i = mix(value) & mask;; i = (i + 1) & mask)
+            {
+                if (!used[i])
+                {
+                    return false;
+                }
+                if (slots[i] == value)
+                {
+                    return true;
+                }
+            }
+        }
+
+        private static int mix(int h)
+        {
+            h ^= (h >>> 16);
+            return h * 0x85EBCA6B;
+        }
+    }
+}
@@ -4,22 +4,28 @@
 
 package plugins.MDNSDiscovery.javax.jmdns.impl;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,9 +35,12 @@ import plugins.MDNSDiscovery.javax.jmdns.ServiceInfo;
 import plugins.MDNSDiscovery.javax.jmdns.ServiceListener;
 import plugins.MDNSDiscovery.javax.jmdns.ServiceTypeListener;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.Announcer;
+import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.CacheRevalidator;
+import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.CacheSnapshotter;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.Canceler;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.Prober;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.RecordReaper;
+import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.RecordRefresher;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.Renewer;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.Responder;
 import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.ServiceInfoResolver;
@@ -57,9 +66,31 @@ public class JmDNSImpl extends JmDNS
      */
     private InetAddress group;
     /**
-     * This is our multicast socket.
+     * This is the IPv6 multicast group, we are listening to for multicast DNS
+     * messages.
+     */
+    private InetAddress group6;
+
+    /**
+     * The destinations of multicast messages, for each protocol family.
+     */
+    private InetSocketAddress groupAddress;
+    private InetSocketAddress group6Address;
+    /**
+     * This is our IPv4 multicast channel, or null if no interface has an
+     * IPv4 address.
+     */
+    private DatagramChannel channel;
+    /**
+     * This is our IPv6 multicast channel, or null if no interface has an
+     * IPv6 address or IPv6 is not available.
+     */
+    private DatagramChannel channel6;
+    /**
+     * Memberships of our channels in the multicast groups, one per interface
+     * and protocol family.
      */
-    private MulticastSocket socket;
+    private List memberships;
 
     /**
      * Used to fix live lock problem on unregester.
@@ -72,6 +103,17 @@ public class JmDNSImpl extends JmDNS
      * because it is updated from concurrent threads.
      */
     private List listeners;
+    /**
+     * The listeners in listeners that were added for a question, by the
+     * canonical DNSName of the question. Values are Lists of DNSListener's.
+     * Guarded by this.
+     */
+    private final Map listenersByName = new HashMap();
+    /**
+     * The listeners in listeners that were added without a question. They
+     * are told about every record. Guarded by this.
+     */
+    private final List anyNameListeners = new ArrayList();
     /**
      * Holds instances of ServiceListener's. Keys are Strings holding a fully
      * qualified service type. Values are LinkedList's of ServiceListener's.
@@ -101,6 +143,23 @@ public class JmDNSImpl extends JmDNS
      * Values hold the fully qualified service type.
      */
     Map serviceTypes;
+
+    /**
+     * The PTR records of _services._dns-sd._udp.local. that list the service
+     * types, shared by the responses, or null if a type was added since they
+     * were built. Guarded by serviceTypeLock.
+     */
+    private List serviceTypeAnswers;
+    private final Object serviceTypeLock = new Object();
+
+    /**
+     * The names we are interested in, used to drop irrelevant datagrams.
+     * Rebuilt by getInterests() after interestsChanged() was called.
+     */
+    private volatile InterestIndex interests;
+
+    private volatile boolean interestsChanged = true;
+
     /**
      * This is the shutdown hook, we registered with the java runtime.
      */
@@ -111,7 +170,32 @@ public class JmDNSImpl extends JmDNS
      */
     private HostInfo localHost;
 
-    private Thread incomingListener = null;
+    /**
+     * Handles on the local host for each network interface we serve. The
+     * first one is localHost.
+     */
+    private List hostInfos;
+
+    /**
+     * True if JmDNS serves every suitable network interface, rather than
+     * the one it was bound to.
+     */
+    private boolean allInterfaces = false;
+
+    /**
+     * Receives datagrams from the multicast channels.
+     */
+    private SocketListener incomingListener = null;
+
+    /**
+     * Parses and handles the datagrams received by the incomingListener.
+     */
+    private volatile PacketProcessor packetProcessor = null;
+
+    /**
+     * Delivers events to the service listeners and service type listeners.
+     */
+    private EventDispatcher eventDispatcher;
 
     /**
      * Throttle count. This is used to count the overall number of probes sent
@@ -124,10 +208,10 @@ public class JmDNSImpl extends JmDNS
     private long lastThrottleIncrement;
 
     /**
-     * The timer is used to dispatch all outgoing messages of JmDNS. It is also
-     * used to dispatch maintenance tasks for the DNS cache.
+     * The scheduler is used to dispatch all outgoing messages of JmDNS. It is
+     * also used to dispatch maintenance tasks for the DNS cache.
      */
-    Timer timer;
+    DNSTaskScheduler scheduler;
 
     /**
      * The source for random values. This is used to introduce random delays in
@@ -150,6 +234,62 @@ public class JmDNSImpl extends JmDNS
      */
     private DNSIncoming plannedAnswer;
 
+    /**
+     * Upper bound on the number of messages in outgoingPool.
+     */
+    private static final int OUTGOING_POOL_SIZE = 8;
+
+    /**
+     * Outgoing messages that have been sent, and can be reused by
+     * createOutgoing().
+     */
+    private final DNSOutgoing[] outgoingPool = new DNSOutgoing[OUTGOING_POOL_SIZE];
+
+    private int outgoingPoolSize = 0;
+
+    /**
+     * Receives a copy of every datagram sent and received, or null.
+     */
+    private volatile WireTap wireTap;
+
+    /**
+     * The pending record reaper, and the time it is due. Guarded by
+     * reaperLock.
+     */
+    private RecordReaper reaper;
+
+    private long reaperTime = Long.MAX_VALUE;
+
+    private final Object reaperLock = new Object();
+
+    /**
+     * The times the watched records in the cache are to be refreshed.
+     */
+    private final RefreshQueue refreshQueue = new RefreshQueue();
+
+    /**
+     * The pending record refresher, and the time it is due. Guarded by
+     * refresherLock.
+     */
+    private RecordRefresher refresher;
+
+    private long refresherTime = Long.MAX_VALUE;
+
+    private final Object refresherLock = new Object();
+
+    /**
+     * The questions other hosts asked recently, by the host info of the
+     * interface they were received on, see isDuplicateQuestion(). Guarded
+     * by itself.
+     */
+    private final Map questionHistories = new HashMap();
+
+    /**
+     * The queries waiting for an answer, by the host info of the interface
+     * they were received on. Guarded by itself.
+     */
+    private final Map responseQueues = new HashMap();
+
     // State machine
     /**
      * The state of JmDNS. <p/> For proper handling of concurrency, this
@@ -162,7 +302,7 @@ public class JmDNSImpl extends JmDNS
      * Timer task associated to the host name. This is used to prevent from
      * having multiple tasks associated to the host name at the same time.
      */
-    private TimerTask task;
+    private DNSTask task;
 
     /**
      * This hashtable is used to maintain a list of service types being
@@ -173,29 +313,42 @@ public class JmDNSImpl extends JmDNS
      */
     private final HashMap serviceCollectors = new HashMap();
 
+    /**
+     * The file the cache is saved to and reloaded from, or null.
+     */
+    private File snapshotFile;
+
+    /**
+     * The names of the records reloaded from the snapshot that are being
+     * revalidated, as lower case Strings. Guarded by this.
+     */
+    private final Set revalidating = new HashSet();
+
     /**
      * Create an instance of JmDNS.
      */
     public JmDNSImpl() throws IOException
+    {
+        this((File) null);
+    }
+
+    /**
+     * Create an instance of JmDNS that saves its cache to a file, see
+     * saveCache(). Unexpired records saved by a previous instance are
+     * reloaded, and revalidated in the background.
+     *
+     * @param snapshot
+     *      the file, or null to not save the cache.
+     */
+    public JmDNSImpl(File snapshot) throws IOException
     {
         logger.finer("JmDNS instance created");
+        this.snapshotFile = snapshot;
         try
         {
             final InetAddress addr = InetAddress.getLocalHost();
-            init(addr.isLoopbackAddress() ? null : addr, addr.getHostName()); // [
-            // PJYF
-            // Oct
-            // 14
-            // 2004
-            // ]
-            // Why
-            // do
-            // we
-            // disallow
-            // the
-            // loopback
-            // address
-            // ?
+            // Serve every network interface
+            init(null, addr.getHostName());
         }
         catch (final IOException e)
         {
@@ -205,10 +358,22 @@ public class JmDNSImpl extends JmDNS
 
     /**
      * Create an instance of JmDNS and bind it to a specific network interface
-     * given its IP-address.
+     * given its IP-address. Falls back to serving every network interface if
+     * the address can not be used.
      */
     public JmDNSImpl(InetAddress addr) throws IOException
     {
+        this(addr, null);
+    }
+
+    /**
+     * Create an instance of JmDNS bound to a specific network interface,
+     * that saves its cache to a file. See JmDNSImpl(InetAddress) and
+     * JmDNSImpl(File).
+     */
+    public JmDNSImpl(InetAddress addr, File snapshot) throws IOException
+    {
+        this.snapshotFile = snapshot;
         try
         {
             init(addr, addr.getHostName());
@@ -223,7 +388,8 @@ public class JmDNSImpl extends JmDNS
      * Initialize everything.
      * 
      * @param address
-     *      The interface to which JmDNS binds to.
+     *      The interface to which JmDNS binds to, or null to bind to every
+     *      suitable interface.
      * @param name
      *      The host name of the interface.
      */
@@ -238,9 +404,26 @@ public class JmDNSImpl extends JmDNS
         }
         name += ".local.";
         // localHost to IP address binding
-        localHost = new HostInfo(address, name);
+        if (address != null)
+        {
+            localHost = new HostInfo(address, name);
+            hostInfos = Collections.singletonList(localHost);
+        }
+        else
+        {
+            allInterfaces = true;
+            hostInfos = Collections.unmodifiableList(HostInfo.createHostInfos(name));
+            localHost = (HostInfo) hostInfos.get(0);
+        }
 
         cache = new DNSCache(100);
+        cache.setEvictionGuard(new DNSCache.EvictionGuard()
+        {
+            public boolean isProtected(DNSRecord rec)
+            {
+                return isWatched(rec);
+            }
+        });
 
         listeners = Collections.synchronizedList(new ArrayList());
         serviceListeners = new HashMap();
@@ -249,25 +432,113 @@ public class JmDNSImpl extends JmDNS
         services = new Hashtable(20);
         serviceTypes = new Hashtable(20);
 
-        // REMIND: If I could pass in a name for the Timer thread,
-        // I would pass' JmDNS.Timer'.
-        timer = new Timer();
-        new RecordReaper(this).start(timer);
+        eventDispatcher = new EventDispatcher();
+        eventDispatcher.start();
+
+        scheduler = createScheduler();
         shutdown = new Thread(new Shutdown(), "JmDNS.Shutdown");
         Runtime.getRuntime().addShutdownHook(shutdown);
 
-        incomingListener = new Thread(new SocketListener(this), "JmDNS.SocketListener");
+        final List reloaded = loadCache();
 
         // Bind to multicast socket
-        openMulticastSocket(getLocalHost());
+        openMulticastSocket();
         start(getServices().values());
+
+        if (!reloaded.isEmpty())
+        {
+            new CacheRevalidator(this, reloaded).start(scheduler);
+        }
+        if (snapshotFile != null)
+        {
+            new CacheSnapshotter(this).start(scheduler);
+        }
+    }
+
+    /**
+     * Reload the records saved in the snapshot file into the cache. Returns
+     * the records that were reloaded.
+     */
+    private List loadCache()
+    {
+        if ((snapshotFile == null) || !snapshotFile.exists())
+        {
+            return Collections.EMPTY_LIST;
+        }
+        try
+        {
+            final List result = CacheSnapshot.read(snapshotFile, cache, System.currentTimeMillis());
+            logger.finer("loadCache() reloaded " + result.size() + " records from " + snapshotFile);
+            synchronized (this)
+            {
+                for (final Iterator i = result.iterator(); i.hasNext();)
+                {
+                    revalidating.add(((DNSRecord) i.next()).getKey());
+                }
+            }
+            interestsChanged();
+            scheduleReaper();
+            return result;
+        }
+        catch (final IOException e)
+        {
+            logger.log(Level.WARNING, "loadCache() exception ", e);
+            return Collections.EMPTY_LIST;
+        }
+    }
+
+    /**
+     * Save the cache to the snapshot file, if there is one. This is done
+     * periodically, and when JmDNS is closed.
+     */
+    public void saveCache()
+    {
+        if (snapshotFile == null)
+        {
+            return;
+        }
+        try
+        {
+            final int count = CacheSnapshot.write(cache, snapshotFile, System.currentTimeMillis());
+            logger.finer("saveCache() saved " + count + " records to " + snapshotFile);
+        }
+        catch (final IOException e)
+        {
+            logger.log(Level.WARNING, "saveCache() exception ", e);
+        }
+    }
+
+    /**
+     * Remove the records reloaded from the snapshot that have not been
+     * confirmed by an answer received since a given time, and notify the
+     * listeners that they expired. Ends the revalidation.
+     */
+    public void expireUnconfirmed(List records, long since)
+    {
+        final long now = System.currentTimeMillis();
+        synchronized (getIoLock())
+        {
+            for (final Iterator i = records.iterator(); i.hasNext();)
+            {
+                final DNSRecord rec = (DNSRecord) i.next();
+                if ((rec.getCreated() < since) && cache.remove(rec))
+                {
+                    rec.setTtl(0);
+                    updateRecord(now, rec);
+                }
+            }
+        }
+        synchronized (this)
+        {
+            revalidating.clear();
+        }
+        interestsChanged();
     }
 
     private void start(Collection serviceInfos)
     {
         setState(DNSState.PROBING_1);
-        incomingListener.start();
-        new Prober(this).start(timer);
+        new Prober(this).start(scheduler);
         for (final Iterator iterator = serviceInfos.iterator(); iterator.hasNext();)
         {
             try
@@ -281,38 +552,138 @@ public class JmDNSImpl extends JmDNS
         }
     }
 
-    private void openMulticastSocket(HostInfo hostInfo) throws IOException
+    /**
+     * Opens the multicast channels, one for IPv4 and one for IPv6, and joins
+     * the multicast group of each family on the interface of every host info
+     * that has an address of that family.
+     */
+    private void openMulticastSocket() throws IOException
     {
         if (group == null)
         {
             group = InetAddress.getByName(DNSConstants.MDNS_GROUP);
+            group6 = InetAddress.getByName(DNSConstants.MDNS_GROUP_IPV6);
+            groupAddress = new InetSocketAddress(group, DNSConstants.MDNS_PORT);
+            group6Address = new InetSocketAddress(group6, DNSConstants.MDNS_PORT);
         }
-        if (socket != null)
+        if (channel != null || channel6 != null)
         {
             this.closeMulticastSocket();
         }
-        socket = new MulticastSocket(DNSConstants.MDNS_PORT);
-        if ((hostInfo != null) && (localHost.getInterface() != null))
+        memberships = new ArrayList();
+        boolean ipv4 = false;
+        boolean ipv6 = false;
+        for (final Iterator i = hostInfos.iterator(); i.hasNext();)
+        {
+            final HostInfo hostInfo = (HostInfo) i.next();
+            if (hostInfo.getInterface() == null)
+            {
+                throw new IOException("No network interface for " + hostInfo);
+            }
+            ipv4 |= hostInfo.hasInet4Address();
+            ipv6 |= hostInfo.getInet6Address() != null;
+        }
+
+        if (ipv4)
+        {
+            channel = openChannel(StandardProtocolFamily.INET);
+            for (final Iterator i = hostInfos.iterator(); i.hasNext();)
+            {
+                final HostInfo hostInfo = (HostInfo) i.next();
+                if (hostInfo.hasInet4Address())
+                {
+                    memberships.add(channel.join(group, hostInfo.getInterface()));
+                }
+            }
+        }
+        if (ipv6)
+        {
+            try
+            {
+                channel6 = openChannel(StandardProtocolFamily.INET6);
+                for (final Iterator i = hostInfos.iterator(); i.hasNext();)
+                {
+                    final HostInfo hostInfo = (HostInfo) i.next();
+                    if (hostInfo.getInet6Address() != null)
+                    {
+                        memberships.add(channel6.join(group6, hostInfo.getInterface()));
+                    }
+                }
+            }
+            catch (final IOException exception)
+            {
+                if (channel == null)
+                {
+                    throw exception;
+                }
+                // Carry on with IPv4 only
+                logger.log(Level.WARNING, "openMulticastSocket() IPv6 not available ", exception);
+                if (channel6 != null)
+                {
+                    channel6.close();
+                    channel6 = null;
+                }
+            }
+        }
+
+        packetProcessor = new PacketProcessor(this);
+        packetProcessor.start();
+        incomingListener = new SocketListener(this, packetProcessor);
+        if (channel != null)
+        {
+            incomingListener.addChannel(channel, StandardProtocolFamily.INET);
+        }
+        if (channel6 != null)
+        {
+            incomingListener.addChannel(channel6, StandardProtocolFamily.INET6);
+        }
+        incomingListener.start();
+    }
+
+    private static DatagramChannel openChannel(ProtocolFamily family) throws IOException
+    {
+        final DatagramChannel ch = DatagramChannel.open(family);
+        try
+        {
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+            ch.bind(new InetSocketAddress(DNSConstants.MDNS_PORT));
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.valueOf(255));
+        }
+        catch (final IOException exception)
         {
-            socket.setNetworkInterface(hostInfo.getInterface());
+            ch.close();
+            throw exception;
         }
-        socket.setTimeToLive(255);
-        socket.joinGroup(group);
+        return ch;
     }
 
     private void closeMulticastSocket()
     {
         logger.finer("closeMulticastSocket()");
-        if (socket != null)
+        if (channel != null || channel6 != null)
         {
-            // close socket
+            // close channels
             try
             {
-                socket.leaveGroup(group);
-                socket.close();
+                for (final Iterator i = memberships.iterator(); i.hasNext();)
+                {
+                    ((MembershipKey) i.next()).drop();
+                }
                 if (incomingListener != null)
                 {
-                    incomingListener.join();
+                    incomingListener.close();
+                }
+                if (packetProcessor != null)
+                {
+                    packetProcessor.close();
+                }
+                if (channel != null)
+                {
+                    channel.close();
+                }
+                if (channel6 != null)
+                {
+                    channel6.close();
                 }
             }
             catch (final Exception exception)
@@ -320,73 +691,395 @@ public class JmDNSImpl extends JmDNS
                 logger.log(Level.WARNING, "closeMulticastSocket() Close socket exception ",
                         exception);
             }
-            socket = null;
+            channel = null;
+            channel6 = null;
+            memberships = null;
+            incomingListener = null;
+            packetProcessor = null;
+        }
+    }
+
+    // State machine
+    /**
+     * Sets the state and notifies all objects that wait on JmDNS.
+     */
+    public synchronized void advanceState()
+    {
+        setState(getState().advance());
+        notifyAll();
+    }
+
+    /**
+     * Sets the state and notifies all objects that wait on JmDNS.
+     */
+    synchronized void revertState()
+    {
+        setState(getState().revert());
+        notifyAll();
+    }
+
+    /**
+     * Sets the state and notifies all objects that wait on JmDNS.
+     */
+    synchronized void cancel()
+    {
+        setState(DNSState.CANCELED);
+        notifyAll();
+    }
+
+    /**
+     * Returns the current state of this info.
+     */
+    public DNSState getState()
+    {
+        return state;
+    }
+
+    /**
+     * Return the DNSCache associated with the cache variable
+     */
+    public DNSCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @see plugins.MDNSDiscovery.javax.jmdns.JmDNS#getHostName()
+     */
+    public String getHostName()
+    {
+        return localHost.getName();
+    }
+
+    public HostInfo getLocalHost()
+    {
+        return localHost;
+    }
+
+    /**
+     * @see plugins.MDNSDiscovery.javax.jmdns.JmDNS#getInterface()
+     */
+    public InetAddress getInterface() throws IOException
+    {
+        return localHost.getAddress();
+    }
+
+    /**
+     * Returns the handles on the local host for every network interface
+     * JmDNS serves.
+     */
+    public List getHostInfos()
+    {
+        return hostInfos;
+    }
+
+    /**
+     * Returns the handle on the local host for the interface a datagram from
+     * the given address was received on, or null if the address is not on
+     * any of the links we serve.
+     */
+    HostInfo getHostInfo(InetAddress from)
+    {
+        for (final Iterator i = hostInfos.iterator(); i.hasNext();)
+        {
+            final HostInfo hostInfo = (HostInfo) i.next();
+            if (hostInfo.isOnLink(from))
+            {
+                return hostInfo;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Returns the number of received datagrams waiting to be parsed.
+     */
+    public int getParseQueueDepth()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getParseQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the number of received datagrams waiting to be handled.
+     */
+    public int getHandleQueueDepth()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getHandleQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the number of events waiting to be delivered to the listeners.
+     */
+    public int getEventQueueDepth()
+    {
+        return eventDispatcher.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of received datagrams dropped because the receive
+     * queues were full, since the multicast channels were last opened.
+     */
+    public long getDroppedPacketCount()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getDroppedCount() : 0;
+    }
+
+    /**
+     * Returns the number of received datagrams dropped because they were not
+     * sent from any of the links we serve, since the multicast channels were
+     * last opened.
+     */
+    public long getOffLinkPacketCount()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getOffLinkCount() : 0;
+    }
+
+    /**
+     * Returns the number of received datagrams dropped because they could
+     * not be parsed, since the multicast channels were last opened.
+     */
+    public long getMalformedPacketCount()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getMalformedCount() : 0;
+    }
+
+    /**
+     * Returns the number of received datagrams dropped because they had
+     * already been received over the other protocol family, since the
+     * multicast channels were last opened.
+     */
+    public long getDuplicatePacketCount()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getDuplicateCount() : 0;
+    }
+
+    /**
+     * Returns the number of received datagrams dropped because none of their
+     * names was of interest, since the multicast channels were last opened.
+     */
+    public long getFilteredPacketCount()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getFilteredCount() : 0;
+    }
+
+    /**
+     * Returns the number of received datagrams that passed the interest
+     * filter, since the multicast channels were last opened.
+     */
+    public long getPassedPacketCount()
+    {
+        final PacketProcessor processor = packetProcessor;
+        return (processor != null) ? processor.getPassedCount() : 0;
+    }
+
+    /**
+     * Sets the limits of the cache. Once either limit is exceeded, records
+     * nobody is waiting for are evicted.
+     *
+     * @param maxEntries
+     *      the maximum number of records, defaults to
+     *      DNSConstants.CACHE_MAX_ENTRIES.
+     * @param maxBytes
+     *      the maximum approximate memory used by the records, defaults to
+     *      DNSConstants.CACHE_MAX_BYTES.
+     */
+    public void setCacheLimits(int maxEntries, long maxBytes)
+    {
+        cache.setLimits(maxEntries, maxBytes);
     }
 
-    // State machine
     /**
-     * Sets the state and notifies all objects that wait on JmDNS.
+     * Returns the number of records in the cache.
      */
-    public synchronized void advanceState()
+    public int getCacheSize()
     {
-        setState(getState().advance());
-        notifyAll();
+        return cache.size();
     }
 
     /**
-     * Sets the state and notifies all objects that wait on JmDNS.
+     * Returns the approximate memory used by the records in the cache.
      */
-    synchronized void revertState()
+    public long getCacheBytes()
     {
-        setState(getState().revert());
-        notifyAll();
+        return cache.getBytes();
     }
 
     /**
-     * Sets the state and notifies all objects that wait on JmDNS.
+     * Returns the number of records evicted from the cache because it was
+     * full.
      */
-    synchronized void cancel()
+    public long getEvictedRecordCount()
     {
-        setState(DNSState.CANCELED);
-        notifyAll();
+        return cache.getEvictedCount();
     }
 
     /**
-     * Returns the current state of this info.
+     * Check if a record in the cache is in use: if it answers a question a
+     * listener is waiting on, such as a service being resolved, if it is a
+     * PTR record of a service type being browsed, or the SRV or TXT record
+     * of a service of such a type, or if it is the address of the server of
+     * any of these services. These records are not evicted from the cache,
+     * and are refreshed before they expire.
      */
-    public DNSState getState()
+    boolean isWatched(DNSRecord rec)
     {
-        return state;
+        if (isWatched(rec.getDNSName(), rec.type == DNSConstants.TYPE_PTR))
+        {
+            return true;
+        }
+        if ((rec.type == DNSConstants.TYPE_A) || (rec.type == DNSConstants.TYPE_AAAA))
+        {
+            for (DNSCache.CacheNode n = cache.findBySrvTarget(rec.getDNSName()); n != null; n = n.next())
+            {
+                if (isWatched(n.getValue().getDNSName(), false))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
-     * Return the DNSCache associated with the cache variable
+     * Check if a name is watched: if a listener is waiting on a question
+     * about it, or if it is a service type being browsed, or for a name that
+     * is not a type, the name of a service of such a type.
      */
-    public DNSCache getCache()
+    private boolean isWatched(DNSName name, boolean type)
     {
-        return cache;
+        synchronized (this)
+        {
+            if (listenersByName.containsKey(name.canonical()))
+            {
+                return true;
+            }
+        }
+        final String key = name.getKey();
+        synchronized (serviceListeners)
+        {
+            if (type)
+            {
+                return serviceListeners.containsKey(key);
+            }
+            for (final Iterator i = serviceListeners.keySet().iterator(); i.hasNext();)
+            {
+                final String browsed = (String) i.next();
+                if ((key.length() > browsed.length()) && key.endsWith(browsed)
+                        && (key.charAt(key.length() - browsed.length() - 1) == '.'))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
-     * @see plugins.MDNSDiscovery.javax.jmdns.JmDNS#getHostName()
+     * Invalidates the interest index. Must be called whenever the set of
+     * names we are interested in may have changed.
      */
-    public String getHostName()
+    void interestsChanged()
     {
-        return localHost.getName();
+        interestsChanged = true;
     }
 
-    public HostInfo getLocalHost()
+    /**
+     * Returns the names we are interested in: our host name, the names and
+     * types of our services, the types we listen to, the hosts of the cached
+     * services of those types, and the services being resolved. If a service
+     * type listener is registered, every datagram is of interest.
+     */
+    InterestIndex getInterests()
     {
-        return localHost;
+        InterestIndex result = interests;
+        final String hostName = getHostName();
+        if (interestsChanged || (result == null) || !hostName.equals(result.getHostName()))
+        {
+            interestsChanged = false;
+            result = buildInterests(hostName);
+            interests = result;
+        }
+        return result;
+    }
+
+    private synchronized InterestIndex buildInterests(String hostName)
+    {
+        if (!typeListeners.isEmpty())
+        {
+            return InterestIndex.EVERYTHING;
+        }
+        final InterestIndex result = new InterestIndex(false, hostName);
+        result.addName(hostName);
+        result.addName("_services._dns-sd._udp.local.");
+        final Set registeredTypes = new HashSet();
+        for (final Iterator i = services.values().iterator(); i.hasNext();)
+        {
+            final ServiceInfoImpl info = (ServiceInfoImpl) i.next();
+            result.addName(info.getQualifiedName());
+            result.addType(info.type);
+            registeredTypes.add(info.type.toLowerCase());
+        }
+        for (final Iterator i = serviceTypes.keySet().iterator(); i.hasNext();)
+        {
+            result.addType((String) i.next());
+        }
+        for (final Iterator i = revalidating.iterator(); i.hasNext();)
+        {
+            result.addName((String) i.next());
+        }
+        synchronized (serviceListeners)
+        {
+            for (final Iterator i = serviceListeners.keySet().iterator(); i.hasNext();)
+            {
+                result.addType((String) i.next());
+            }
+        }
+        // The hosts of the cached services of the types we browse or
+        // register, so that the answers refreshing their addresses get
+        // through, see isWatched()
+        for (DNSCache.CacheNode n = cache.findByType(DNSConstants.TYPE_SRV); n != null; n = n.next())
+        {
+            final DNSRecord.Service srv = (DNSRecord.Service) n.getValue();
+            final String key = srv.getKey();
+            if (isWatched(srv.getDNSName(), false) || registeredTypes.contains(key.substring(key.indexOf('.') + 1)))
+            {
+                result.addName(srv.server.toString());
+            }
+        }
+        for (final Iterator i = listeners.iterator(); i.hasNext();)
+        {
+            final Object listener = i.next();
+            if (!(listener instanceof ServiceInfoImpl))
+            {
+                return InterestIndex.EVERYTHING;
+            }
+            final ServiceInfoImpl info = (ServiceInfoImpl) listener;
+            result.addName(info.getQualifiedName());
+            result.addName(info.server);
+        }
+        return result;
     }
 
     /**
-     * @see plugins.MDNSDiscovery.javax.jmdns.JmDNS#getInterface()
+     * Check if an address belongs to one of the interfaces we serve.
      */
-    public InetAddress getInterface() throws IOException
+    boolean isLocalAddress(InetAddress address)
     {
-        return socket.getInterface();
+        for (final Iterator i = hostInfos.iterator(); i.hasNext();)
+        {
+            if (((HostInfo) i.next()).hasAddress(address))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -404,7 +1097,7 @@ public class JmDNSImpl extends JmDNS
     public ServiceInfo getServiceInfo(String type, String name, int timeout)
     {
         final ServiceInfoImpl info = new ServiceInfoImpl(type, name);
-        new ServiceInfoResolver(this, info).start(timer);
+        new ServiceInfoResolver(this, info).start(scheduler);
 
         try
         {
@@ -443,7 +1136,7 @@ public class JmDNSImpl extends JmDNS
     {
         registerServiceType(type);
         final ServiceInfoImpl info = new ServiceInfoImpl(type, name);
-        new ServiceInfoResolver(this, info).start(timer);
+        new ServiceInfoResolver(this, info).start(scheduler);
 
         try
         {
@@ -479,10 +1172,17 @@ public class JmDNSImpl extends JmDNS
         if (listCopy != null)
         {
             final ServiceEvent event = new ServiceEventImpl(this, info.type, info.getName(), info);
-            for (final Iterator iterator = listCopy.iterator(); iterator.hasNext();)
+            final List targets = listCopy;
+            eventDispatcher.dispatch(new Runnable()
             {
-                ((ServiceListener) iterator.next()).serviceResolved(event);
-            }
+                public void run()
+                {
+                    for (final Iterator iterator = targets.iterator(); iterator.hasNext();)
+                    {
+                        ((ServiceListener) iterator.next()).serviceResolved(event);
+                    }
+                }
+            });
         }
     }
 
@@ -498,6 +1198,7 @@ public class JmDNSImpl extends JmDNS
             typeListeners.remove(listener);
             typeListeners.add(listener);
         }
+        interestsChanged();
 
         // report cached service types
         for (final Iterator iterator = serviceTypes.values().iterator(); iterator.hasNext();)
@@ -506,7 +1207,7 @@ public class JmDNSImpl extends JmDNS
                     null));
         }
 
-        new TypeResolver(this).start(timer);
+        new TypeResolver(this).start(scheduler);
     }
 
     /**
@@ -519,6 +1220,7 @@ public class JmDNSImpl extends JmDNS
         {
             typeListeners.remove(listener);
         }
+        interestsChanged();
     }
 
     /**
@@ -541,26 +1243,17 @@ public class JmDNSImpl extends JmDNS
             }
             list.add(listener);
         }
+        interestsChanged();
+        scheduleRefreshes();
 
-        // report cached service types
+        // report cached services of the type
         final List serviceEvents = new ArrayList();
-        synchronized (cache)
+        for (DNSCache.CacheNode n = cache.find(DNSName.get(type), DNSConstants.TYPE_PTR,
+                DNSConstants.CLASS_IN); n != null; n = n.next())
         {
-            for (final Iterator i = cache.iterator(); i.hasNext();)
-            {
-                for (DNSCache.CacheNode n = (DNSCache.CacheNode) i.next(); n != null; n = n.next())
-                {
-                    final DNSRecord rec = (DNSRecord) n.getValue();
-                    if (rec.type == DNSConstants.TYPE_SRV)
-                    {
-                        if (rec.name.endsWith(type))
-                        {
-                            serviceEvents.add(new ServiceEventImpl(this, type, toUnqualifiedName(
-                                    type, rec.name), null));
-                        }
-                    }
-                }
-            }
+            final DNSRecord.Pointer rec = (DNSRecord.Pointer) n.getValue();
+            serviceEvents.add(new ServiceEventImpl(this, type, toUnqualifiedName(type, rec.getAlias()),
+                    null));
         }
         // Actually call listener with all service events added above
         for (final Iterator i = serviceEvents.iterator(); i.hasNext();)
@@ -568,7 +1261,7 @@ public class JmDNSImpl extends JmDNS
             listener.serviceAdded((ServiceEventImpl) i.next());
         }
         // Create/start ServiceResolver
-        new ServiceResolver(this, type).start(timer);
+        new ServiceResolver(this, type).start(scheduler);
     }
 
     /**
@@ -591,6 +1284,7 @@ public class JmDNSImpl extends JmDNS
                 }
             }
         }
+        interestsChanged();
     }
 
     /**
@@ -609,10 +1303,11 @@ public class JmDNSImpl extends JmDNS
         synchronized (this)
         {
             makeServiceNameUnique(info);
-            services.put(info.getQualifiedName().toLowerCase(), info);
+            services.put(info.getKey(), info);
         }
+        interestsChanged();
 
-        new /* Service */Prober(this).start(timer);
+        new /* Service */Prober(this).start(scheduler);
         try
         {
             synchronized (info)
@@ -638,8 +1333,9 @@ public class JmDNSImpl extends JmDNS
         final ServiceInfoImpl info = (ServiceInfoImpl) infoAbstract;
         synchronized (this)
         {
-            services.remove(info.getQualifiedName().toLowerCase());
+            services.remove(info.getKey());
         }
+        interestsChanged();
         info.cancel();
 
         // Note: We use this lock object to synchronize on it.
@@ -650,7 +1346,7 @@ public class JmDNSImpl extends JmDNS
         // accesses to synchronized methods on that object. This is not
         // what we want!
         final Object lock = new Object();
-        new Canceler(this, info, lock).start(timer);
+        new Canceler(this, info, lock).start(scheduler);
 
         // Remind: We get a deadlock here, if the Canceler does not run!
         try
@@ -683,13 +1379,14 @@ public class JmDNSImpl extends JmDNS
             list = new LinkedList(services.values());
             services.clear();
         }
+        interestsChanged();
         for (final Iterator iterator = list.iterator(); iterator.hasNext();)
         {
             ((ServiceInfoImpl) iterator.next()).cancel();
         }
 
         final Object lock = new Object();
-        new Canceler(this, list, lock).start(timer);
+        new Canceler(this, list, lock).start(scheduler);
         // Remind: We get a livelock here, if the Canceler does not run!
         try
         {
@@ -711,25 +1408,61 @@ public class JmDNSImpl extends JmDNS
     /**
      * @see plugins.MDNSDiscovery.javax.jmdns.JmDNS#registerServiceType(java.lang.String)
      */
-    public void registerServiceType(String type)
+    public void registerServiceType(final String type)
     {
         final String name = type.toLowerCase();
         if (serviceTypes.get(name) == null)
         {
             if ((type.indexOf("._dns-sd._udp.") < 0) && !type.endsWith(".in-addr.arpa."))
             {
-                Collection list;
+                final Collection list;
                 synchronized (this)
                 {
                     serviceTypes.put(name, type);
                     list = new LinkedList(typeListeners);
                 }
-                for (final Iterator iterator = list.iterator(); iterator.hasNext();)
+                synchronized (serviceTypeLock)
+                {
+                    serviceTypeAnswers = null;
+                }
+                interestsChanged();
+                eventDispatcher.dispatch(new Runnable()
+                {
+                    public void run()
+                    {
+                        for (final Iterator iterator = list.iterator(); iterator.hasNext();)
+                        {
+                            ((ServiceTypeListener) iterator.next()).serviceTypeAdded(new ServiceEventImpl(
+                                    JmDNSImpl.this, type, null, null));
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the PTR records answering a query for the service types, see
+     * RFC 6763, section 9. The list and the records are shared, and must not
+     * be modified.
+     */
+    public List getServiceTypeAnswers()
+    {
+        synchronized (serviceTypeLock)
+        {
+            if (serviceTypeAnswers == null)
+            {
+                final List result = new ArrayList(serviceTypes.size());
+                for (final Iterator i = serviceTypes.values().iterator(); i.hasNext();)
                 {
-                    ((ServiceTypeListener) iterator.next()).serviceTypeAdded(new ServiceEventImpl(
-                            this, type, null, null));
+                    final DNSRecord rec = new DNSRecord.Pointer("_services._dns-sd._udp.local.", DNSConstants.TYPE_PTR,
+                            DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, (String) i.next());
+                    rec.preEncode();
+                    result.add(rec);
                 }
+                serviceTypeAnswers = Collections.unmodifiableList(result);
             }
+            return serviceTypeAnswers;
         }
     }
 
@@ -750,7 +1483,7 @@ public class JmDNSImpl extends JmDNS
             collision = false;
 
             // Check for collision in cache
-            for (DNSCache.CacheNode j = cache.find(host.getName().toLowerCase()); j != null; j = j
+            for (DNSCache.CacheNode j = cache.find(host.getDNSName()); j != null; j = j
                     .next())
             {
                 if (false)
@@ -790,23 +1523,23 @@ public class JmDNSImpl extends JmDNS
             collision = false;
 
             // Check for collision in cache
-            for (DNSCache.CacheNode j = cache.find(info.getQualifiedName().toLowerCase()); j != null; j = j
+            for (DNSCache.CacheNode j = cache.find(info.getQualifiedDNSName()); j != null; j = j
                     .next())
             {
                 final DNSRecord a = (DNSRecord) j.getValue();
                 if ((a.type == DNSConstants.TYPE_SRV) && !a.isExpired(now))
                 {
                     final DNSRecord.Service s = (DNSRecord.Service) a;
-                    if (s.port != info.port || !s.server.equals(localHost.getName()))
+                    if (s.port != info.port || !s.getServer().equals(localHost.getName()))
                     {
                         logger
                                 .finer("makeServiceNameUnique() JmDNS.makeServiceNameUnique srv collision:"
                                         + a
                                         + " s.server="
-                                        + s.server
+                                        + s.getServer()
                                         + " "
                                         + localHost.getName()
-                                        + " equals:" + (s.server.equals(localHost.getName())));
+                                        + " equals:" + (s.getServer().equals(localHost.getName())));
                         info.setName(incrementName(info.getName()));
                         collision = true;
                         break;
@@ -815,7 +1548,7 @@ public class JmDNSImpl extends JmDNS
             }
 
             // Check for collision with other service infos published by JmDNS
-            final Object selfService = services.get(info.getQualifiedName().toLowerCase());
+            final Object selfService = services.get(info.getKey());
             if (selfService != null && selfService != info)
             {
                 info.setName(incrementName(info.getName()));
@@ -863,12 +1596,28 @@ public class JmDNSImpl extends JmDNS
         synchronized (this)
         {
             listeners.add(listener);
+            if (question != null)
+            {
+                final DNSName key = question.getDNSName().canonical();
+                List list = (List) listenersByName.get(key);
+                if (list == null)
+                {
+                    list = new ArrayList();
+                    listenersByName.put(key, list);
+                }
+                list.add(listener);
+            }
+            else
+            {
+                anyNameListeners.add(listener);
+            }
         }
+        interestsChanged();
 
         // report existing matched records
         if (question != null)
         {
-            for (DNSCache.CacheNode i = cache.find(question.name); i != null; i = i.next())
+            for (DNSCache.CacheNode i = cache.find(question.getDNSName()); i != null; i = i.next())
             {
                 final DNSRecord c = (DNSRecord) i.getValue();
                 if (question.answeredBy(c) && !c.isExpired(now))
@@ -888,33 +1637,84 @@ public class JmDNSImpl extends JmDNS
         synchronized (this)
         {
             listeners.remove(listener);
+            anyNameListeners.remove(listener);
+            for (final Iterator i = listenersByName.values().iterator(); i.hasNext();)
+            {
+                final List list = (List) i.next();
+                list.remove(listener);
+                if (list.isEmpty())
+                {
+                    i.remove();
+                }
+            }
+        }
+        interestsChanged();
+    }
+
+    /**
+     * Adds the listeners for a name to a list, unless they are in it.
+     */
+    private void addListeners(List result, DNSName name)
+    {
+        final List list = (List) listenersByName.get(name.canonical());
+        if (list != null)
+        {
+            for (final Iterator i = list.iterator(); i.hasNext();)
+            {
+                final Object listener = i.next();
+                if (!result.contains(listener))
+                {
+                    result.add(listener);
+                }
+            }
         }
     }
 
     // Remind: Method updateRecord should receive a better name.
     /**
-     * Notify all listeners that a record was updated.
+     * Notify the listeners interested in a record that it was updated: those
+     * that asked about its name, and for an address record, those that asked
+     * about a service whose SRV record points to the host.
      */
     public void updateRecord(long now, DNSRecord rec)
     {
+        if (rec.type == DNSConstants.TYPE_SRV)
+        {
+            // The host of the service may be of interest, see buildInterests()
+            interestsChanged();
+        }
+
         // We do not want to block the entire DNS while we are updating the
         // record for each listener (service info)
-        List listenerList = null;
+        final List listenerList = new ArrayList();
         synchronized (this)
         {
-            listenerList = new ArrayList(listeners);
+            listenerList.addAll(anyNameListeners);
+            addListeners(listenerList, rec.getDNSName());
+            if ((rec.type == DNSConstants.TYPE_A) || (rec.type == DNSConstants.TYPE_AAAA))
+            {
+                for (DNSCache.CacheNode n = cache.findBySrvTarget(rec.getDNSName()); n != null; n = n.next())
+                {
+                    addListeners(listenerList, n.getValue().getDNSName());
+                }
+            }
         }
         for (final Iterator iterator = listenerList.iterator(); iterator.hasNext();)
         {
             final DNSListener listener = (DNSListener) iterator.next();
             listener.updateRecord(this, now, rec);
         }
+        if (rec.type == DNSConstants.TYPE_SRV && !listenerList.isEmpty())
+        {
+            // A service being resolved may have learned its server name
+            interestsChanged();
+        }
         if (rec.type == DNSConstants.TYPE_PTR || rec.type == DNSConstants.TYPE_SRV)
         {
             List serviceListenerList = null;
             synchronized (serviceListeners)
             {
-                serviceListenerList = (List) serviceListeners.get(rec.name.toLowerCase());
+                serviceListenerList = (List) serviceListeners.get(rec.getKey());
                 // Iterate on a copy in case listeners will modify it
                 if (serviceListenerList != null)
                 {
@@ -926,29 +1726,29 @@ public class JmDNSImpl extends JmDNS
                 final boolean expired = rec.isExpired(now);
                 final String type = rec.getName();
                 final String name = ((DNSRecord.Pointer) rec).getAlias();
+                final List targets = serviceListenerList;
                 // DNSRecord old = (DNSRecord)services.get(name.toLowerCase());
-                if (!expired)
-                {
-                    // new record
-                    final ServiceEvent event = new ServiceEventImpl(this, type, toUnqualifiedName(
-                            type, name), null);
-                    for (final Iterator iterator = serviceListenerList.iterator(); iterator
-                            .hasNext();)
-                    {
-                        ((ServiceListener) iterator.next()).serviceAdded(event);
-                    }
-                }
-                else
+                eventDispatcher.dispatch(new Runnable()
                 {
-                    // expire record
-                    final ServiceEvent event = new ServiceEventImpl(this, type, toUnqualifiedName(
-                            type, name), null);
-                    for (final Iterator iterator = serviceListenerList.iterator(); iterator
-                            .hasNext();)
+                    public void run()
                     {
-                        ((ServiceListener) iterator.next()).serviceRemoved(event);
+                        final ServiceEvent event = new ServiceEventImpl(JmDNSImpl.this, type,
+                                toUnqualifiedName(type, name), null);
+                        for (final Iterator iterator = targets.iterator(); iterator.hasNext();)
+                        {
+                            if (!expired)
+                            {
+                                // new record
+                                ((ServiceListener) iterator.next()).serviceAdded(event);
+                            }
+                            else
+                            {
+                                // expire record
+                                ((ServiceListener) iterator.next()).serviceRemoved(event);
+                            }
+                        }
                     }
-                }
+                });
             }
         }
     }
@@ -957,10 +1757,21 @@ public class JmDNSImpl extends JmDNS
      * Handle an incoming response. Cache answers, and pass them on to the
      * appropriate questions.
      */
-    void handleResponse(DNSIncoming msg) throws IOException
+    void handleResponse(DNSIncoming msg, HostInfo hostInfo) throws IOException
     {
         final long now = System.currentTimeMillis();
 
+        // Cancel the pending answers the response gives
+        final ResponseQueue queue;
+        synchronized (responseQueues)
+        {
+            queue = (ResponseQueue) responseQueues.get(hostInfo);
+        }
+        if (queue != null)
+        {
+            queue.answered(msg);
+        }
+
         boolean hostConflictDetected = false;
         boolean serviceConflictDetected = false;
 
@@ -969,75 +1780,265 @@ public class JmDNSImpl extends JmDNS
             boolean isInformative = false;
             DNSRecord rec = (DNSRecord) i.next();
             final boolean expired = rec.isExpired(now);
+            final boolean flush = rec.unique && !expired;
 
             // update the cache
             final DNSRecord c = (DNSRecord) cache.get(rec);
             if (c != null)
             {
-                if (expired)
-                {
-                    isInformative = true;
-                    cache.remove(c);
-                }
-                else
+                if (expired)
+                {
+                    isInformative = true;
+                    cache.remove(c);
+                }
+                else
+                {
+                    c.resetTTL(rec);
+                    cache.reschedule(c);
+                    rec = c;
+                }
+            }
+            else
+            {
+                if (!expired)
+                {
+                    isInformative = true;
+                    cache.add(rec);
+                }
+            }
+            if (flush)
+            {
+                flushRRSet(rec, now);
+            }
+            if (!expired && isWatched(rec))
+            {
+                refreshQueue.schedule(rec, now);
+            }
+            switch (rec.type)
+            {
+                case DNSConstants.TYPE_PTR:
+                    // handle _mdns._udp records
+                    if (rec.getName().indexOf("._dns-sd._udp.") >= 0)
+                    {
+                        if (!expired && rec.name.startsWith("_services._mdns._udp."))
+                        {
+                            isInformative = true;
+                            registerServiceType(((DNSRecord.Pointer) rec).getAlias());
+                        }
+                        continue;
+                    }
+                    registerServiceType(rec.name);
+                    break;
+            }
+
+            if ((rec.getType() == DNSConstants.TYPE_A) || (rec.getType() == DNSConstants.TYPE_AAAA))
+            {
+                hostConflictDetected |= rec.handleResponse(this);
+            }
+            else
+            {
+                serviceConflictDetected |= rec.handleResponse(this);
+            }
+
+            // notify the listeners
+            if (isInformative)
+            {
+                updateRecord(now, rec);
+            }
+        }
+
+        scheduleReaper();
+        scheduleRefresher();
+
+        if (hostConflictDetected || serviceConflictDetected)
+        {
+            new Prober(this).start(scheduler);
+        }
+    }
+
+    /**
+     * Handles the cache-flush bit of a record that was received: the other
+     * records with the same name, type and class that were received more
+     * than a second ago are out of date, and expire in one second (RFC
+     * 6762, section 10.2). Records received during the last second are
+     * kept, they belong to the same announcement.
+     */
+    private void flushRRSet(DNSRecord rec, long now)
+    {
+        for (DNSCache.CacheNode n = cache.find(rec.getDNSName(), rec.type, rec.clazz); n != null; n = n.next())
+        {
+            final DNSRecord c = (DNSRecord) n.getValue();
+            if ((c != rec) && (c.getCreated() < now - 1000) && (c.getExpirationTime(100) > now + 1000))
+            {
+                c.setWillExpireSoon(now);
+                cache.reschedule(c);
+            }
+        }
+    }
+
+    /**
+     * Makes sure a record reaper runs when the earliest record in the cache
+     * is due to expire. Must be called after records have been added to the
+     * cache or had their TTL changed.
+     */
+    public void scheduleReaper()
+    {
+        final long next = cache.nextExpiration();
+        synchronized (reaperLock)
+        {
+            if ((next >= reaperTime) || (getState() == DNSState.CANCELED))
+            {
+                return;
+            }
+            if (reaper != null)
+            {
+                reaper.cancel();
+            }
+            reaper = new RecordReaper(this);
+            reaperTime = next;
+            try
+            {
+                reaper.start(scheduler, next);
+            }
+            catch (final IllegalStateException e)
+            {
+                // the scheduler has been cancelled, we are shutting down
+                reaper = null;
+                reaperTime = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Called by a record reaper when it has run, schedules the next one.
+     */
+    public void reaperDone(RecordReaper done)
+    {
+        synchronized (reaperLock)
+        {
+            if (reaper == done)
+            {
+                reaper = null;
+                reaperTime = Long.MAX_VALUE;
+            }
+        }
+        scheduleReaper();
+    }
+
+    /**
+     * Schedules the refreshes of all watched records in the cache. Called
+     * when records may have become watched, see isWatched().
+     */
+    private void scheduleRefreshes()
+    {
+        final long now = System.currentTimeMillis();
+        for (final Iterator i = cache.iterator(); i.hasNext();)
+        {
+            for (DNSCache.CacheNode n = (DNSCache.CacheNode) i.next(); n != null; n = n.next())
+            {
+                final DNSRecord rec = (DNSRecord) n.getValue();
+                if (!rec.isExpired(now) && isWatched(rec))
                 {
-                    c.resetTTL(rec);
-                    rec = c;
+                    refreshQueue.schedule(rec, now);
                 }
             }
-            else
+        }
+        scheduleRefresher();
+    }
+
+    /**
+     * Makes sure a record refresher runs when the next watched record is due
+     * to be refreshed.
+     */
+    public void scheduleRefresher()
+    {
+        final long next = refreshQueue.nextTime();
+        synchronized (refresherLock)
+        {
+            if ((next >= refresherTime) || (getState() == DNSState.CANCELED))
             {
-                if (!expired)
-                {
-                    isInformative = true;
-                    cache.add(rec);
-                }
+                return;
             }
-            switch (rec.type)
+            if (refresher != null)
             {
-                case DNSConstants.TYPE_PTR:
-                    // handle _mdns._udp records
-                    if (rec.getName().indexOf("._dns-sd._udp.") >= 0)
-                    {
-                        if (!expired && rec.name.startsWith("_services._mdns._udp."))
-                        {
-                            isInformative = true;
-                            registerServiceType(((DNSRecord.Pointer) rec).alias);
-                        }
-                        continue;
-                    }
-                    registerServiceType(rec.name);
-                    break;
+                refresher.cancel();
             }
-
-            if ((rec.getType() == DNSConstants.TYPE_A) || (rec.getType() == DNSConstants.TYPE_AAAA))
+            refresher = new RecordRefresher(this);
+            refresherTime = next;
+            try
             {
-                hostConflictDetected |= rec.handleResponse(this);
+                refresher.start(scheduler, next);
             }
-            else
+            catch (final IllegalStateException e)
             {
-                serviceConflictDetected |= rec.handleResponse(this);
+                // the scheduler has been cancelled, we are shutting down
+                refresher = null;
+                refresherTime = Long.MAX_VALUE;
             }
+        }
+    }
 
-            // notify the listeners
-            if (isInformative)
+    /**
+     * Called by a record refresher when it has run, schedules the next one.
+     */
+    public void refresherDone(RecordRefresher done)
+    {
+        synchronized (refresherLock)
+        {
+            if (refresher == done)
             {
-                updateRecord(now, rec);
+                refresher = null;
+                refresherTime = Long.MAX_VALUE;
             }
         }
+        scheduleRefresher();
+    }
 
-        if (hostConflictDetected || serviceConflictDetected)
+    /**
+     * Returns the records that are due to be refreshed, including those due
+     * within the next DNSConstants.REFRESH_BATCH_INTERVAL, so that they can
+     * be asked for with one query. Records that are no longer in the cache
+     * or no longer watched are left out.
+     */
+    public List pollRefreshes(long now)
+    {
+        final List result = new ArrayList();
+        for (final Iterator i = refreshQueue.poll(now + DNSConstants.REFRESH_BATCH_INTERVAL).iterator(); i
+                .hasNext();)
         {
-            new Prober(this).start(timer);
+            final DNSRecord rec = (DNSRecord) i.next();
+            if (!rec.isExpired(now) && cache.contains(rec) && isWatched(rec))
+            {
+                result.add(rec);
+            }
         }
+        return result;
     }
 
     /**
      * Handle an incoming query. See if we can answer any part of it given our
      * service infos.
      */
-    void handleQuery(DNSIncoming in, InetAddress addr, int port) throws IOException
+    void handleQuery(DNSIncoming in, InetAddress addr, int port, HostInfo hostInfo) throws IOException
     {
+        // Remember the questions other hosts ask with multicast queries.
+        // Queries from other ports get unicast answers, we would not see them.
+        if ((port == DNSConstants.MDNS_PORT) && (in.getPort() == DNSConstants.MDNS_PORT)
+            && !isLocalAddress(in.getSource()))
+        {
+            QuestionHistory history;
+            synchronized (questionHistories)
+            {
+                history = (QuestionHistory) questionHistories.get(hostInfo);
+                if (history == null)
+                {
+                    history = new QuestionHistory();
+                    questionHistories.put(hostInfo, history);
+                }
+            }
+            history.add(in, System.currentTimeMillis());
+        }
+
         // Track known answers
         boolean hostConflictDetected = false;
         boolean serviceConflictDetected = false;
@@ -1067,25 +2068,149 @@ public class JmDNSImpl extends JmDNS
                 plannedAnswer = in;
             }
 
-            new Responder(this, in, addr, port).start();
+            scheduleResponse(in, addr, port, hostInfo);
         }
 
         if (hostConflictDetected || serviceConflictDetected)
         {
-            new Prober(this).start(timer);
+            new Prober(this).start(scheduler);
+        }
+    }
+
+    /**
+     * Check if another host on the interface of a host info asked a question
+     * within the last DNSConstants.DUPLICATE_QUESTION_INTERVAL, with all the
+     * known answers we would give. If so, the question needs not be asked
+     * again on that interface, see RFC 6762, section 7.3.
+     */
+    public boolean isDuplicateQuestion(HostInfo hostInfo, DNSQuestion question, List knownAnswers)
+    {
+        final QuestionHistory history;
+        synchronized (questionHistories)
+        {
+            history = (QuestionHistory) questionHistories.get(hostInfo);
+        }
+        return (history != null) && history.isAsked(question, knownAnswers, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue a query for an answer on the interface of a host info. The
+     * queries of an interface that are due at the same time are answered
+     * together, see Responder.
+     */
+    private void scheduleResponse(DNSIncoming in, InetAddress addr, int port, HostInfo hostInfo)
+    {
+        final long time = System.currentTimeMillis() + Responder.getDelay(this, in, hostInfo);
+        ResponseQueue queue;
+        synchronized (responseQueues)
+        {
+            queue = (ResponseQueue) responseQueues.get(hostInfo);
+            if (queue == null)
+            {
+                queue = new ResponseQueue();
+                responseQueues.put(hostInfo, queue);
+            }
+        }
+        queue.add(in, addr, port, time);
+        scheduleResponder(queue, hostInfo);
+    }
+
+    /**
+     * Makes sure a responder runs when the first query of a queue is due.
+     */
+    private void scheduleResponder(ResponseQueue queue, HostInfo hostInfo)
+    {
+        final long next = queue.nextTime();
+        synchronized (queue)
+        {
+            if ((next >= queue.responderTime) || (getState() == DNSState.CANCELED))
+            {
+                return;
+            }
+            if (queue.responder != null)
+            {
+                queue.responder.cancel();
+            }
+            queue.responder = new Responder(this, hostInfo);
+            queue.responderTime = next;
+            try
+            {
+                queue.responder.start(scheduler, next);
+            }
+            catch (final IllegalStateException e)
+            {
+                // the scheduler has been cancelled, we are shutting down
+                queue.responder = null;
+                queue.responderTime = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Returns the queries received on the interface of a host info that are
+     * due now, see ResponseQueue.poll().
+     */
+    public List pollResponses(HostInfo hostInfo, long now)
+    {
+        final ResponseQueue queue;
+        synchronized (responseQueues)
+        {
+            queue = (ResponseQueue) responseQueues.get(hostInfo);
+        }
+        return (queue != null) ? queue.poll(now) : Collections.EMPTY_LIST;
+    }
+
+    /**
+     * Called by a responder when it has run, schedules the next one if
+     * queries are left.
+     */
+    public void responderDone(Responder done, HostInfo hostInfo)
+    {
+        final ResponseQueue queue;
+        synchronized (responseQueues)
+        {
+            queue = (ResponseQueue) responseQueues.get(hostInfo);
+        }
+        if (queue == null)
+        {
+            return;
+        }
+        synchronized (queue)
+        {
+            if (queue.responder == done)
+            {
+                queue.responder = null;
+                queue.responderTime = Long.MAX_VALUE;
+            }
+        }
+        scheduleResponder(queue, hostInfo);
+    }
+
+    /**
+     * Forget the queries waiting for an answer.
+     */
+    private void clearResponseQueues()
+    {
+        synchronized (responseQueues)
+        {
+            for (final Iterator i = responseQueues.values().iterator(); i.hasNext();)
+            {
+                ((ResponseQueue) i.next()).clear();
+            }
+            responseQueues.clear();
         }
     }
 
     /**
      * Add an answer to a question. Deal with the case when the outgoing packet
-     * overflows
+     * overflows, by sending it on the interface of the host info.
      */
     public DNSOutgoing addAnswer(DNSIncoming in, InetAddress addr, int port, DNSOutgoing out,
-            DNSRecord rec) throws IOException
+            DNSRecord rec, HostInfo hostInfo) throws IOException
     {
         if (out == null)
         {
-            out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+            out = createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
         }
         try
         {
@@ -1096,54 +2221,244 @@ public class JmDNSImpl extends JmDNS
             out.flags |= DNSConstants.FLAGS_TC;
             out.id = in.id;
             out.finish();
-            send(out);
+            send(out, hostInfo);
 
-            out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+            out = createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
             out.addAnswer(in, rec);
         }
         return out;
     }
 
     /**
-     * Send an outgoing multicast DNS message.
+     * Returns an empty outgoing multicast message, reusing one that has
+     * been sent if there is one.
+     */
+    public DNSOutgoing createOutgoing(int flags)
+    {
+        return createOutgoing(flags, true);
+    }
+
+    /**
+     * Returns an empty outgoing message, reusing one that has been sent if
+     * there is one. The message goes back to the pool when it is passed to
+     * send(), so it must not be used after that.
+     */
+    public DNSOutgoing createOutgoing(int flags, boolean multicast)
+    {
+        synchronized (outgoingPool)
+        {
+            if (outgoingPoolSize > 0)
+            {
+                final DNSOutgoing out = outgoingPool[--outgoingPoolSize];
+                outgoingPool[outgoingPoolSize] = null;
+                out.reset(flags, multicast);
+                return out;
+            }
+        }
+        return new DNSOutgoing(flags, multicast);
+    }
+
+    /**
+     * Puts a sent message back into the pool.
+     */
+    private void recycle(DNSOutgoing out)
+    {
+        synchronized (outgoingPool)
+        {
+            if (!out.pooled && (outgoingPoolSize < outgoingPool.length))
+            {
+                out.pooled = true;
+                outgoingPool[outgoingPoolSize++] = out;
+            }
+        }
+    }
+
+    /**
+     * Send an outgoing multicast DNS message on every interface. The message
+     * is recycled, see createOutgoing().
      */
     public void send(DNSOutgoing out) throws IOException
     {
-        out.finish();
-        if (!out.isEmpty())
+        try
+        {
+            out.finish();
+            if (!out.isEmpty())
+            {
+                IOException failure = null;
+                for (final Iterator i = hostInfos.iterator(); i.hasNext();)
+                {
+                    try
+                    {
+                        transmit(out, (HostInfo) i.next());
+                    }
+                    catch (final IOException e)
+                    {
+                        failure = e;
+                    }
+                }
+                if (failure != null)
+                {
+                    throw failure;
+                }
+            }
+        }
+        finally
+        {
+            recycle(out);
+        }
+    }
+
+    /**
+     * Send an outgoing multicast DNS message on the interface of a host info.
+     * The message is recycled, see createOutgoing().
+     */
+    public void send(DNSOutgoing out, HostInfo hostInfo) throws IOException
+    {
+        try
         {
-            final DatagramPacket packet = new DatagramPacket(out.data, out.off, group,
-                    DNSConstants.MDNS_PORT);
+            out.finish();
+            if (!out.isEmpty())
+            {
+                transmit(out, hostInfo);
+            }
+        }
+        finally
+        {
+            recycle(out);
+        }
+    }
 
-            try
+    /**
+     * Sends a message to a single address, over the interface of a host
+     * info. The message is recycled, see createOutgoing().
+     */
+    public void send(DNSOutgoing out, HostInfo hostInfo, InetSocketAddress destination) throws IOException
+    {
+        try
+        {
+            out.finish();
+            if (!out.isEmpty())
+            {
+                transmit((destination.getAddress() instanceof Inet4Address) ? channel : channel6, destination,
+                        out, hostInfo);
+            }
+        }
+        finally
+        {
+            recycle(out);
+        }
+    }
+
+    /**
+     * Sends a message on the interface of a host info, over each protocol
+     * family the interface has an address of.
+     */
+    private void transmit(DNSOutgoing out, HostInfo hostInfo) throws IOException
+    {
+        if (hostInfo.hasInet4Address())
+        {
+            transmit(channel, groupAddress, out, hostInfo);
+        }
+        if (hostInfo.getInet6Address() != null)
+        {
+            transmit(channel6, group6Address, out, hostInfo);
+        }
+    }
+
+    private void transmit(DatagramChannel ch, InetSocketAddress destination, DNSOutgoing out,
+            HostInfo hostInfo) throws IOException
+    {
+        if (ch != null && ch.isOpen())
+        {
+            // The channel is shared by all interfaces, so selecting the
+            // outgoing interface and sending have to happen atomically.
+            synchronized (ch)
             {
-                final DNSIncoming msg = new DNSIncoming(packet);
-                logger.finest("send() JmDNS out:" + msg.print(true));
+                ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, hostInfo.getInterface());
+                ch.send(out.getBuffer(), destination);
             }
-            catch (final IOException e)
+            final WireTap tap = wireTap;
+            if (tap != null)
             {
-                logger.throwing(getClass().toString(),
-                        "send(DNSOutgoing) - JmDNS can not parse what it sends!!!", e);
+                final InetAddress source = (ch == channel) ? hostInfo.getAddress()
+                    : hostInfo.getInet6Address();
+                tap.datagram(true, out.data, 0, out.off, new InetSocketAddress(source,
+                        DNSConstants.MDNS_PORT), destination);
             }
-            final MulticastSocket ms = socket;
-            if (ms != null && !ms.isClosed())
-                ms.send(packet);
         }
     }
 
+    /**
+     * Hands a received datagram to the wire tap, if there is one.
+     */
+    void tapReceived(byte[] data, int off, int len, InetSocketAddress source)
+    {
+        final WireTap tap = wireTap;
+        if (tap != null)
+        {
+            tap.datagram(false, data, off, len, source,
+                    (source.getAddress() instanceof Inet4Address) ? groupAddress : group6Address);
+        }
+    }
+
+    /**
+     * Installs a wire tap, which receives a copy of every datagram sent and
+     * received from now on. The previous tap, if any, is closed.
+     *
+     * @param tap
+     *      the new wire tap, or null to remove the current one.
+     */
+    public void setWireTap(WireTap tap)
+    {
+        final WireTap old;
+        synchronized (this)
+        {
+            old = wireTap;
+            wireTap = tap;
+        }
+        if ((old != null) && (old != tap))
+        {
+            old.close();
+        }
+    }
+
+    public WireTap getWireTap()
+    {
+        return wireTap;
+    }
+
     public void startAnnouncer()
     {
-        new Announcer(this).start(timer);
+        new Announcer(this).start(scheduler);
     }
 
     public void startRenewer()
     {
-        new Renewer(this).start(timer);
+        new Renewer(this).start(scheduler);
+    }
+
+    public void schedule(DNSTask task, int delay)
+    {
+        scheduler.schedule(task, delay);
+    }
+
+    /**
+     * Creates the scheduler the tasks of this instance run on. Override to
+     * use another one.
+     */
+    protected DNSTaskScheduler createScheduler()
+    {
+        return new HashedWheelScheduler("JmDNS.Timer", DNSConstants.SCHEDULER_TICK_INTERVAL,
+                DNSConstants.SCHEDULER_WHEEL_SIZE);
     }
 
-    public void schedule(TimerTask task, int delay)
+    /**
+     * Returns the scheduler the tasks of this instance run on, for its
+     * pending task count and lateness statistics.
+     */
+    public DNSTaskScheduler getScheduler()
     {
-        timer.schedule(task, delay);
+        return scheduler;
     }
 
     // REMIND: Why is this not an anonymous inner class?
@@ -1190,13 +2505,45 @@ public class JmDNSImpl extends JmDNS
                 closeMulticastSocket();
                 //
                 cache.clear();
+                synchronized (reaperLock)
+                {
+                    if (reaper != null)
+                    {
+                        reaper.cancel();
+                    }
+                    reaper = null;
+                    reaperTime = Long.MAX_VALUE;
+                }
+                refreshQueue.clear();
+                synchronized (refresherLock)
+                {
+                    if (refresher != null)
+                    {
+                        refresher.cancel();
+                    }
+                    refresher = null;
+                    refresherTime = Long.MAX_VALUE;
+                }
+                clearResponseQueues();
+                synchronized (questionHistories)
+                {
+                    questionHistories.clear();
+                }
+                revalidating.clear();
                 logger.finer("recover() All is clean");
                 //
                 // All is clear now start the services
                 //
                 try
                 {
-                    openMulticastSocket(getLocalHost());
+                    if (allInterfaces)
+                    {
+                        // The interfaces may have changed under our feet
+                        hostInfos = Collections.unmodifiableList(HostInfo
+                                .createHostInfos(localHost.getName()));
+                        localHost = (HostInfo) hostInfos.get(0);
+                    }
+                    openMulticastSocket();
                     start(oldServiceInfos);
                 }
                 catch (final Exception exception)
@@ -1225,11 +2572,18 @@ public class JmDNSImpl extends JmDNS
                 unregisterAllServices();
                 disposeServiceCollectors();
 
+                saveCache();
+
                 // close socket
                 closeMulticastSocket();
 
-                // Stop the timer
-                timer.cancel();
+                // Stop delivering events
+                eventDispatcher.close();
+
+                setWireTap(null);
+
+                // Stop the scheduler
+                scheduler.cancel();
 
                 // remove the shutdown hook
                 if (shutdown != null)
@@ -1471,12 +2825,12 @@ public class JmDNSImpl extends JmDNS
         this.state = state;
     }
 
-    public void setTask(TimerTask task)
+    public void setTask(DNSTask task)
     {
         this.task = task;
     }
 
-    public TimerTask getTask()
+    public DNSTask getTask()
     {
         return task;
     }
@@ -1551,11 +2905,6 @@ public class JmDNSImpl extends JmDNS
         return closed;
     }
 
-    public MulticastSocket getSocket()
-    {
-        return socket;
-    }
-
     public InetAddress getGroup()
     {
         return group;
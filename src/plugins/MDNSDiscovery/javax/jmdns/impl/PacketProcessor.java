@@ -0,0 +1,497 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet6Address;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes the datagrams received by the <code>SocketListener</code>.
+ * <p/>
+ * Processing is split in two stages, connected by bounded queues:
+ * <ul>
+ * <li>A pool of parser threads finds the interface each datagram was
+ * received on and parses it into a <code>DNSIncoming</code>. Messages in
+ * which no name is of interest to JmDNS are dropped at this point, before
+ * any of their records is decoded.</li>
+ * <li>A single state thread handles the parsed messages in the order they
+ * were received, under the JmDNS I/O lock. It is the only thread that
+ * applies received records to the cache.</li>
+ * </ul>
+ * If the queues are full, the receive thread drops the datagram rather than
+ * waiting, so that a slow state thread never stops the sockets from being
+ * drained. The dropped datagrams are counted.
+ * <p/>
+ * A dual-stack peer sends each of its messages over IPv4 and over IPv6. The
+ * second copy is dropped by the state thread, so that the cache and the
+ * listeners only see the message once.
+ */
+class PacketProcessor
+{
+    static Logger logger = Logger.getLogger(PacketProcessor.class.getName());
+
+    /**
+     * Capacity of the queues between the stages.
+     */
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * Upper bound on the number of entries in recent.
+     */
+    private static final int MAX_RECENT = 256;
+
+    /**
+     *
+     */
+    private final JmDNSImpl jmDNSImpl;
+
+    /**
+     * Received datagrams waiting for a parser.
+     */
+    private final BlockingQueue parseQueue = new ArrayBlockingQueue(QUEUE_CAPACITY);
+
+    /**
+     * Received datagrams in arrival order, waiting for the state thread. A
+     * datagram is put in both queues, the state thread waits until the
+     * datagram at the head of this one has been parsed.
+     */
+    private final BlockingQueue handleQueue = new ArrayBlockingQueue(QUEUE_CAPACITY);
+
+    /**
+     * The datagrams handled during the last DNSConstants.DUPLICATE_INTERVAL,
+     * keyed by the hash of their payload, oldest first. Only used by the
+     * state thread.
+     */
+    private final LinkedHashMap recent = new LinkedHashMap();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong offLinkCount = new AtomicLong();
+    private final AtomicLong malformedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong filteredCount = new AtomicLong();
+    private final AtomicLong passedCount = new AtomicLong();
+
+    private Thread[] parsers;
+
+    private Thread stateThread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param jmDNSImpl
+     */
+    PacketProcessor(JmDNSImpl jmDNSImpl)
+    {
+        this.jmDNSImpl = jmDNSImpl;
+    }
+
+    void start()
+    {
+        int count = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        parsers = new Thread[count];
+        for (int i = 0; i < count; i++)
+        {
+            parsers[i] = new Thread(new Parser(), "JmDNS.PacketParser-" + i);
+            parsers[i].setDaemon(true);
+            parsers[i].start();
+        }
+        stateThread = new Thread(new StateHandler(), "JmDNS.PacketProcessor");
+        stateThread.setDaemon(true);
+        stateThread.start();
+    }
+
+    /**
+     * Hands a received datagram over to the processing stages. Never blocks:
+     * the datagram is dropped if the queues are full.
+     */
+    void enqueue(DatagramPacket packet)
+    {
+        Work work = new Work(packet);
+        if (!handleQueue.offer(work))
+        {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        // The state thread may take a datagram off the handle queue before
+        // a parser takes it off the parse queue, so the parse queue may be
+        // full even though the handle queue was not. The datagram is then
+        // dropped, and marked parsed so that the state thread skips it.
+        if (!parseQueue.offer(work))
+        {
+            droppedCount.incrementAndGet();
+            work.parsed(null, null);
+        }
+    }
+
+    /**
+     * Stops the processing threads. Datagrams still queued are discarded.
+     */
+    void close()
+    {
+        closed = true;
+        if (parsers != null)
+        {
+            for (int i = 0; i < parsers.length; i++)
+            {
+                stop(parsers[i]);
+            }
+        }
+        stop(stateThread);
+        parseQueue.clear();
+        handleQueue.clear();
+    }
+
+    private static void stop(Thread thread)
+    {
+        if (thread != null && thread != Thread.currentThread())
+        {
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                // empty
+            }
+        }
+    }
+
+    /**
+     * Returns the number of datagrams waiting to be parsed.
+     */
+    int getParseQueueDepth()
+    {
+        return parseQueue.size();
+    }
+
+    /**
+     * Returns the number of datagrams waiting to be handled by the state
+     * thread, including those not parsed yet.
+     */
+    int getHandleQueueDepth()
+    {
+        return handleQueue.size();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the queues were full.
+     */
+    long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because they were not sent from
+     * any of the links we serve.
+     */
+    long getOffLinkCount()
+    {
+        return offLinkCount.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because they could not be
+     * parsed or handled.
+     */
+    long getMalformedCount()
+    {
+        return malformedCount.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the same datagram was
+     * received over the other protocol family.
+     */
+    long getDuplicateCount()
+    {
+        return duplicateCount.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because none of their names
+     * was of interest.
+     */
+    long getFilteredCount()
+    {
+        return filteredCount.get();
+    }
+
+    /**
+     * Returns the number of datagrams that passed the interest filter.
+     */
+    long getPassedCount()
+    {
+        return passedCount.get();
+    }
+
+    private void parse(Work work)
+    {
+        // Only handle datagrams from the links we serve, and answer on
+        // the interface they arrived on
+        HostInfo hostInfo = this.jmDNSImpl.getHostInfo(work.packet.getAddress());
+        if (hostInfo == null)
+        {
+            offLinkCount.incrementAndGet();
+            work.parsed(null, null);
+            return;
+        }
+        DNSIncoming msg = null;
+        try
+        {
+            msg = new DNSIncoming(work.packet);
+        }
+        catch (IOException e)
+        {
+            malformedCount.incrementAndGet();
+            logger.log(Level.WARNING, "parse() exception ", e);
+        }
+        // Drop messages about names nobody is interested in, before their
+        // records get decoded
+        if (msg != null)
+        {
+            if (this.jmDNSImpl.getInterests().isInteresting(msg))
+            {
+                passedCount.incrementAndGet();
+            }
+            else
+            {
+                filteredCount.incrementAndGet();
+                msg = null;
+            }
+        }
+        work.parsed(hostInfo, msg);
+    }
+
+    private void handle(Work work)
+    {
+        DatagramPacket packet = work.packet;
+        DNSIncoming msg = work.msg;
+        HostInfo hostInfo = work.hostInfo;
+        try
+        {
+            if (isDuplicate(packet))
+            {
+                duplicateCount.incrementAndGet();
+                logger.finest("handle() dropped copy received over the other protocol family");
+                return;
+            }
+
+            if (logger.isLoggable(Level.FINEST))
+            {
+                logger.finest("handle() JmDNS in:" + msg.print(true));
+            }
+
+            synchronized (this.jmDNSImpl.getIoLock())
+            {
+                if (msg.isQuery())
+                {
+                    if (packet.getPort() != DNSConstants.MDNS_PORT)
+                    {
+                        this.jmDNSImpl.handleQuery(msg, packet.getAddress(), packet.getPort(), hostInfo);
+                    }
+                    this.jmDNSImpl.handleQuery(msg, this.jmDNSImpl.getGroup(), DNSConstants.MDNS_PORT, hostInfo);
+                }
+                else
+                {
+                    this.jmDNSImpl.handleResponse(msg, hostInfo);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "handle() exception ", e);
+        }
+        catch (RuntimeException e)
+        {
+            // Keep handling the other datagrams
+            malformedCount.incrementAndGet();
+            logger.log(Level.WARNING, "handle() exception ", e);
+        }
+    }
+
+    /**
+     * Check if the same datagram has just been received over the other
+     * protocol family. Otherwise the datagram is remembered.
+     */
+    private boolean isDuplicate(DatagramPacket packet)
+    {
+        long now = System.currentTimeMillis();
+        for (Iterator i = recent.values().iterator(); i.hasNext();)
+        {
+            if (now - ((Seen) i.next()).time < DNSConstants.DUPLICATE_INTERVAL && recent.size() <= MAX_RECENT)
+            {
+                break;
+            }
+            i.remove();
+        }
+
+        boolean ipv6 = packet.getAddress() instanceof Inet6Address;
+        Integer key = Integer.valueOf(hash(packet.getData(), packet.getOffset(), packet.getLength()));
+        Seen seen = (Seen) recent.get(key);
+        if ((seen != null) && (seen.ipv6 != ipv6) && seen.sameData(packet))
+        {
+            return true;
+        }
+        recent.remove(key);
+        recent.put(key, new Seen(packet, ipv6, now));
+        return false;
+    }
+
+    private static int hash(byte[] data, int off, int len)
+    {
+        int result = 1;
+        for (int i = off; i < off + len; i++)
+        {
+            result = 31 * result + data[i];
+        }
+        return result;
+    }
+
+    /**
+     * Takes datagrams off the parse queue and parses them.
+     */
+    private class Parser implements Runnable
+    {
+        public void run()
+        {
+            while (!closed)
+            {
+                Work work;
+                try
+                {
+                    work = (Work) parseQueue.take();
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
+                }
+                try
+                {
+                    parse(work);
+                }
+                catch (RuntimeException e)
+                {
+                    // Drop the datagram, the handler is waiting for it
+                    malformedCount.incrementAndGet();
+                    logger.log(Level.WARNING, "run() exception ", e);
+                    work.parsed(null, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes datagrams off the handle queue in arrival order, and handles them
+     * once they have been parsed.
+     */
+    private class StateHandler implements Runnable
+    {
+        public void run()
+        {
+            while (!closed)
+            {
+                Work work;
+                try
+                {
+                    work = (Work) handleQueue.take();
+                    work.awaitParsed();
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
+                }
+                if (work.msg == null || jmDNSImpl.getState() == DNSState.CANCELED)
+                {
+                    continue;
+                }
+                handle(work);
+            }
+        }
+    }
+
+    /**
+     * A received datagram on its way through the stages.
+     */
+    private static class Work
+    {
+        final DatagramPacket packet;
+        HostInfo hostInfo;
+        DNSIncoming msg;
+        private boolean parsed = false;
+
+        Work(DatagramPacket packet)
+        {
+            this.packet = packet;
+        }
+
+        /**
+         * Called by the parser. A null message means the datagram is to be
+         * dropped.
+         */
+        synchronized void parsed(HostInfo hostInfo, DNSIncoming msg)
+        {
+            this.hostInfo = hostInfo;
+            this.msg = msg;
+            this.parsed = true;
+            notifyAll();
+        }
+
+        synchronized void awaitParsed() throws InterruptedException
+        {
+            while (!parsed)
+            {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * A datagram remembered by isDuplicate().
+     */
+    private static class Seen
+    {
+        final byte[] data;
+        final int off;
+        final int len;
+        final boolean ipv6;
+        final long time;
+
+        Seen(DatagramPacket packet, boolean ipv6, long time)
+        {
+            this.data = packet.getData();
+            this.off = packet.getOffset();
+            this.len = packet.getLength();
+            this.ipv6 = ipv6;
+            this.time = time;
+        }
+
+        boolean sameData(DatagramPacket packet)
+        {
+            if (packet.getLength() != len)
+            {
+                return false;
+            }
+            byte[] other = packet.getData();
+            for (int i = 0; i < len; i++)
+            {
+                if (data[off + i] != other[packet.getOffset() + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
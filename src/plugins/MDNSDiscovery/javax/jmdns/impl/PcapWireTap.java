@@ -0,0 +1,182 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A wire tap that streams the datagrams to a file in pcap format, which can
+ * be read with tcpdump or Wireshark.
+ * <p/>
+ * The capture uses the raw IP link type: each datagram is written with an
+ * IPv4 or IPv6 header and a UDP header in front of it. The headers are made
+ * up from the addresses JmDNS knows about, the UDP checksum is left out.
+ * <p/>
+ * If writing fails, the tap logs the failure and stops writing.
+ */
+public class PcapWireTap implements WireTap
+{
+    private static Logger logger = Logger.getLogger(PcapWireTap.class.getName());
+
+    /**
+     * LINKTYPE_RAW: the packets start with an IPv4 or IPv6 header.
+     */
+    private static final int LINKTYPE_RAW = 101;
+
+    private static final int PROTOCOL_UDP = 17;
+
+    private DataOutputStream out;
+
+    /**
+     * Create a tap writing to a file. An existing file is overwritten.
+     */
+    public PcapWireTap(File file) throws IOException
+    {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Create a tap writing to a stream. The stream is closed by close().
+     */
+    public PcapWireTap(OutputStream stream) throws IOException
+    {
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        writeHeader(out);
+        out.flush();
+    }
+
+    public synchronized void datagram(boolean outbound, byte[] data, int off, int len,
+            InetSocketAddress source, InetSocketAddress destination)
+    {
+        if (out == null)
+        {
+            return;
+        }
+        try
+        {
+            writeRecord(out, System.currentTimeMillis(), data, off, len, source, destination);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "datagram() exception, capture stopped ", e);
+            close();
+        }
+    }
+
+    public synchronized void close()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.WARNING, "close() exception ", e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Write the pcap global header.
+     */
+    static void writeHeader(DataOutputStream out) throws IOException
+    {
+        out.writeInt(0xA1B2C3D4);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(65535);
+        out.writeInt(LINKTYPE_RAW);
+    }
+
+    /**
+     * Write a datagram as a pcap record.
+     */
+    static void writeRecord(DataOutputStream out, long time, byte[] data, int off, int len,
+            InetSocketAddress source, InetSocketAddress destination) throws IOException
+    {
+        final byte[] src = source.getAddress().getAddress();
+        final byte[] dst = destination.getAddress().getAddress();
+        final boolean ipv4 = (source.getAddress() instanceof Inet4Address)
+            && (destination.getAddress() instanceof Inet4Address);
+        final int udpLength = 8 + len;
+        final int length = (ipv4 ? 20 : 40) + udpLength;
+
+        out.writeInt((int) (time / 1000));
+        out.writeInt((int) (time % 1000) * 1000);
+        out.writeInt(length);
+        out.writeInt(length);
+
+        if (ipv4)
+        {
+            final byte[] header = new byte[20];
+            header[0] = 0x45;
+            header[2] = (byte) (length >> 8);
+            header[3] = (byte) length;
+            header[8] = (byte) 255;
+            header[9] = PROTOCOL_UDP;
+            System.arraycopy(src, 0, header, 12, 4);
+            System.arraycopy(dst, 0, header, 16, 4);
+            int sum = 0;
+            for (int i = 0; i < header.length; i += 2)
+            {
+                sum += ((header[i] & 0xFF) << 8) | (header[i + 1] & 0xFF);
+            }
+            while ((sum >> 16) != 0)
+            {
+                sum = (sum & 0xFFFF) + (sum >> 16);
+            }
+            sum = ~sum;
+            header[10] = (byte) (sum >> 8);
+            header[11] = (byte) sum;
+            out.write(header);
+        }
+        else
+        {
+            out.writeInt(0x60000000);
+            out.writeShort(udpLength);
+            out.writeByte(PROTOCOL_UDP);
+            out.writeByte(255);
+            out.write(toInet6(src));
+            out.write(toInet6(dst));
+        }
+
+        out.writeShort(source.getPort());
+        out.writeShort(destination.getPort());
+        out.writeShort(udpLength);
+        out.writeShort(0);
+        out.write(data, off, len);
+    }
+
+    /**
+     * Returns an IPv6 address, mapping IPv4 addresses.
+     */
+    private static byte[] toInet6(byte[] address)
+    {
+        if (address.length == 16)
+        {
+            return address;
+        }
+        final byte[] result = new byte[16];
+        result[10] = (byte) 0xFF;
+        result[11] = (byte) 0xFF;
+        System.arraycopy(address, 0, result, 12, 4);
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The questions other hosts asked recently with multicast queries on an
+ * interface, and the known answers they gave with them. A question we are about to ask
+ * needs not be asked if another host just asked it, with all the known
+ * answers we would give, because the answers are multicast to us too.
+ * See RFC 6762, section 7.3.
+ * <p/>
+ * A question is remembered for DNSConstants.DUPLICATE_QUESTION_INTERVAL.
+ */
+class QuestionHistory
+{
+    /**
+     * The last time each question was asked, and its known answers.
+     */
+    private final HashMap questions = new HashMap();
+
+    private long lastPurge;
+
+    /**
+     * Remember the questions of a query that do not ask for a unicast
+     * response.
+     */
+    synchronized void add(DNSIncoming in, long now)
+    {
+        purge(now);
+        for (final Iterator i = in.getQuestions().iterator(); i.hasNext();)
+        {
+            final DNSQuestion question = (DNSQuestion) i.next();
+            if (question.isUnicastResponse())
+            {
+                continue;
+            }
+            final Set known = new HashSet();
+            for (int j = 0; j < in.numAnswers; j++)
+            {
+                final DNSRecord rec = (DNSRecord) in.answers.get(j);
+                if (question.answeredBy(rec))
+                {
+                    known.add(rec);
+                }
+            }
+            questions.put(question, new Asked(now, known));
+        }
+    }
+
+    /**
+     * True if another host asked a question recently, with all of the
+     * given known answers that answer it.
+     */
+    synchronized boolean isAsked(DNSQuestion question, List knownAnswers, long now)
+    {
+        final Asked asked = (Asked) questions.get(question);
+        if ((asked == null) || (now - asked.time > DNSConstants.DUPLICATE_QUESTION_INTERVAL))
+        {
+            return false;
+        }
+        for (final Iterator i = knownAnswers.iterator(); i.hasNext();)
+        {
+            final DNSRecord rec = (DNSRecord) i.next();
+            if (question.answeredBy(rec) && !asked.known.contains(rec))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the questions that were asked too long ago, at most once per
+     * interval.
+     */
+    private void purge(long now)
+    {
+        if (now - lastPurge < DNSConstants.DUPLICATE_QUESTION_INTERVAL)
+        {
+            return;
+        }
+        lastPurge = now;
+        for (final Iterator i = questions.values().iterator(); i.hasNext();)
+        {
+            if (now - ((Asked) i.next()).time > DNSConstants.DUPLICATE_QUESTION_INTERVAL)
+            {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * When a question was asked, and with which known answers.
+     */
+    private static final class Asked
+    {
+        final long time;
+        final Set known;
+
+        Asked(long time, Set known)
+        {
+            this.time = time;
+            this.known = known;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * The times at which cached records are to be refreshed. As RFC 6762,
+ * section 5.2 suggests, a record is queried for at 80%, 85%, 90% and 95%
+ * of its TTL, each time with a random variation of up to 2% of the TTL, so
+ * that the queries of different hosts for the same record spread out.
+ * <p/>
+ * A record whose TTL was reset has its own schedule started again; the
+ * points of its old schedule are skipped when they come up.
+ */
+class RefreshQueue
+{
+    /**
+     * The refresh points, in percent of the TTL.
+     */
+    private static final int[] STEPS = { 80, 85, 90, 95 };
+
+    private final PriorityQueue queue = new PriorityQueue();
+
+    private final Random random = new Random();
+
+    /**
+     * Start the schedule of a record, at the first refresh point that has
+     * not passed. Nothing is done if the record is already scheduled.
+     */
+    synchronized void schedule(DNSRecord rec, long now)
+    {
+        final long created = rec.getCreated();
+        if (rec.refreshCreated == created)
+        {
+            return;
+        }
+        for (int step = 0; step < STEPS.length; step++)
+        {
+            if (rec.getExpirationTime(STEPS[step]) > now)
+            {
+                push(rec, created, step);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the time the next record is due, or Long.MAX_VALUE if there is
+     * none.
+     */
+    synchronized long nextTime()
+    {
+        final Point point = (Point) queue.peek();
+        return (point != null) ? point.time : Long.MAX_VALUE;
+    }
+
+    /**
+     * Removes the records that are due until a given time, and returns them.
+     * The next refresh point of each record is scheduled.
+     */
+    synchronized List poll(long until)
+    {
+        final List result = new ArrayList();
+        while (!queue.isEmpty() && (((Point) queue.peek()).time <= until))
+        {
+            final Point point = (Point) queue.poll();
+            final DNSRecord rec = point.rec;
+            if ((point.created != rec.refreshCreated) || (point.created != rec.getCreated()))
+            {
+                // the TTL was reset since
+                continue;
+            }
+            result.add(rec);
+            if (point.step + 1 < STEPS.length)
+            {
+                push(rec, point.created, point.step + 1);
+            }
+            else
+            {
+                rec.refreshCreated = 0;
+            }
+        }
+        return result;
+    }
+
+    synchronized void clear()
+    {
+        queue.clear();
+    }
+
+    private void push(DNSRecord rec, long created, int step)
+    {
+        final long jitter = (long) (random.nextDouble() * rec.getTtl() * 20);
+        rec.refreshCreated = created;
+        queue.add(new Point(rec.getExpirationTime(STEPS[step]) + jitter, rec, created, step));
+    }
+
+    /**
+     * A refresh point of a record.
+     */
+    private static final class Point implements Comparable
+    {
+        final long time;
+        final DNSRecord rec;
+        final long created;
+        final int step;
+
+        Point(long time, DNSRecord rec, long created, int step)
+        {
+            this.time = time;
+            this.rec = rec;
+            this.created = created;
+            this.step = step;
+        }
+
+        public int compareTo(Object obj)
+        {
+            final long other = ((Point) obj).time;
+            return (time < other) ? -1 : ((time == other) ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import plugins.MDNSDiscovery.javax.jmdns.impl.tasks.Responder;
+
+/**
+ * The queries received on an interface that have not been answered yet.
+ * A single Responder runs when the first one is due, and answers all the
+ * queries that are due by then together, see JmDNSImpl.scheduleResponse().
+ * <p/>
+ * A query is never answered before it is due: a query for a shared record
+ * waits for its random delay, so that the responses of the other hosts are
+ * seen first, and a truncated query waits for the known answers that
+ * follow it in other messages.
+ * <p/>
+ * An answer another host multicasts on the interface in the meantime is
+ * not given again to the queries that are waiting, see answered().
+ */
+public final class ResponseQueue
+{
+    private final List queries = new ArrayList();
+
+    /**
+     * The pending responder, and the time it is due. Guarded by this.
+     */
+    Responder responder;
+
+    long responderTime = Long.MAX_VALUE;
+
+    synchronized void add(DNSIncoming in, InetAddress addr, int port, long time)
+    {
+        queries.add(new Query(in, addr, port, time));
+    }
+
+    /**
+     * Returns the time the first query is due, or Long.MAX_VALUE if there
+     * is none.
+     */
+    synchronized long nextTime()
+    {
+        long next = Long.MAX_VALUE;
+        for (final Iterator i = queries.iterator(); i.hasNext();)
+        {
+            next = Math.min(next, ((Query) i.next()).time);
+        }
+        return next;
+    }
+
+    /**
+     * Removes the queries that are due at a given time, and returns them in
+     * the order they were received.
+     */
+    synchronized List poll(long now)
+    {
+        final List result = new ArrayList();
+        for (final Iterator i = queries.iterator(); i.hasNext();)
+        {
+            final Query query = (Query) i.next();
+            if (query.time <= now)
+            {
+                result.add(query);
+                i.remove();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Record the answers of a response another host multicast on the
+     * interface. The queries that are waiting treat them as given, if their
+     * TTL is not less than ours, see RFC 6762, section 7.4.
+     */
+    synchronized void answered(DNSIncoming msg)
+    {
+        if (queries.isEmpty())
+        {
+            return;
+        }
+        for (int i = 0; i < msg.numAnswers; i++)
+        {
+            final DNSRecord rec = (DNSRecord) msg.answers.get(i);
+            for (final Iterator j = queries.iterator(); j.hasNext();)
+            {
+                ((Query) j.next()).answered(rec);
+            }
+        }
+    }
+
+    /**
+     * Forget the queries, and cancel the pending responder.
+     */
+    synchronized void clear()
+    {
+        queries.clear();
+        if (responder != null)
+        {
+            responder.cancel();
+            responder = null;
+        }
+        responderTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * A query waiting for an answer, and the address and port it came from.
+     */
+    public static final class Query
+    {
+        final DNSIncoming in;
+        final InetAddress addr;
+        final int port;
+        /**
+         * The time the query is due.
+         */
+        final long time;
+        /**
+         * The answers other hosts multicast while the query was waiting,
+         * with the longest TTL seen for each, or null if there are none.
+         * Only written while the query is in the queue, under its lock.
+         */
+        private HashMap answered;
+
+        Query(DNSIncoming in, InetAddress addr, int port, long time)
+        {
+            this.in = in;
+            this.addr = addr;
+            this.port = port;
+            this.time = time;
+        }
+
+        void answered(DNSRecord rec)
+        {
+            if (answered == null)
+            {
+                answered = new HashMap();
+            }
+            final DNSRecord other = (DNSRecord) answered.get(rec);
+            if ((other == null) || (rec.getTtl() > other.getTtl()))
+            {
+                answered.put(rec, rec);
+            }
+        }
+
+        /**
+         * True if another host multicast an answer while the query was
+         * waiting, with a TTL not less than the one we would give.
+         */
+        public boolean isAnswered(DNSRecord answer)
+        {
+            if (answered == null)
+            {
+                return false;
+            }
+            final DNSRecord other = (DNSRecord) answered.get(answer);
+            return (other != null) && (other.getTtl() >= answer.getTtl());
+        }
+
+        public DNSIncoming getIncoming()
+        {
+            return in;
+        }
+
+        public InetAddress getAddress()
+        {
+            return addr;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+    }
+}
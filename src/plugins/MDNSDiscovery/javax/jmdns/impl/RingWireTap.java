@@ -0,0 +1,185 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A wire tap that keeps the last datagrams in memory, for debugging a
+ * running instance. The oldest datagram is overwritten once the ring is
+ * full.
+ */
+public class RingWireTap implements WireTap
+{
+    private final Frame[] frames;
+
+    /**
+     * Index of the slot the next datagram is stored in.
+     */
+    private int next = 0;
+
+    private int size = 0;
+
+    /**
+     * @param capacity
+     *      the number of datagrams kept.
+     */
+    public RingWireTap(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        frames = new Frame[capacity];
+    }
+
+    public synchronized void datagram(boolean outbound, byte[] data, int off, int len,
+            InetSocketAddress source, InetSocketAddress destination)
+    {
+        final byte[] copy = new byte[len];
+        System.arraycopy(data, off, copy, 0, len);
+        frames[next] = new Frame(System.currentTimeMillis(), outbound, copy, source, destination);
+        next = (next + 1) % frames.length;
+        if (size < frames.length)
+        {
+            size++;
+        }
+    }
+
+    /**
+     * Nothing to release, the datagrams stay available.
+     */
+    public void close()
+    {
+        // empty
+    }
+
+    /**
+     * Forget all datagrams.
+     */
+    public synchronized void clear()
+    {
+        for (int i = 0; i < frames.length; i++)
+        {
+            frames[i] = null;
+        }
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns the datagrams in the ring, oldest first, as instances of
+     * RingWireTap.Frame.
+     */
+    public synchronized List getFrames()
+    {
+        final List result = new ArrayList(size);
+        for (int i = 0; i < size; i++)
+        {
+            result.add(frames[(next - size + i + frames.length) % frames.length]);
+        }
+        return result;
+    }
+
+    /**
+     * Write the datagrams in the ring to a stream in pcap format, see
+     * PcapWireTap. The stream is not closed.
+     */
+    public void writePcap(OutputStream stream) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        PcapWireTap.writeHeader(out);
+        for (final Iterator i = getFrames().iterator(); i.hasNext();)
+        {
+            final Frame frame = (Frame) i.next();
+            PcapWireTap.writeRecord(out, frame.time, frame.data, 0, frame.data.length, frame.source,
+                    frame.destination);
+        }
+        out.flush();
+    }
+
+    /**
+     * Dumps the datagrams in the ring, decoding the DNS messages.
+     */
+    public String toString()
+    {
+        final StringBuffer buf = new StringBuffer();
+        for (final Iterator i = getFrames().iterator(); i.hasNext();)
+        {
+            buf.append(i.next());
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * A datagram kept by the ring.
+     */
+    public static class Frame
+    {
+        final long time;
+        final boolean outbound;
+        final byte[] data;
+        final InetSocketAddress source;
+        final InetSocketAddress destination;
+
+        Frame(long time, boolean outbound, byte[] data, InetSocketAddress source,
+                InetSocketAddress destination)
+        {
+            this.time = time;
+            this.outbound = outbound;
+            this.data = data;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public boolean isOutbound()
+        {
+            return outbound;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public InetSocketAddress getSource()
+        {
+            return source;
+        }
+
+        public InetSocketAddress getDestination()
+        {
+            return destination;
+        }
+
+        public String toString()
+        {
+            String message;
+            try
+            {
+                message = new DNSIncoming(ByteBuffer.wrap(data), source.getAddress(), source.getPort()).print(true);
+            }
+            catch (IOException e)
+            {
+                message = "malformed: " + e;
+            }
+            return time + (outbound ? " out " : " in ") + source + " -> " + destination + " " + message;
+        }
+    }
+}
@@ -7,10 +7,10 @@ package plugins.MDNSDiscovery.javax.jmdns.impl;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.util.Enumeration;
 import java.util.Hashtable;
-import java.util.TimerTask;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -45,10 +45,14 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
      * Possible tasks are JmDNS.Prober, JmDNS.Announcer, JmDNS.Responder,
      * JmDNS.Canceler.
      */
-    private TimerTask task;
+    private DNSTask task;
 
     String type;
     private String name;
+    /**
+     * The interned qualified name, computed on first use.
+     */
+    private DNSName qualifiedName;
     String server;
     int port;
     int weight;
@@ -56,6 +60,11 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
     private byte text[];
     Hashtable props;
     InetAddress addr;
+    /**
+     * The records answering for this service, built on first use. Dropped
+     * when the name, port or text of the service change.
+     */
+    private volatile Answers answers;
 
     /**
      * @see plugins.MDNSDiscovery.javax.jmdns.ServiceInfo#create(String, String, int, String)
@@ -204,6 +213,8 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
     void setName(String name)
     {
         this.name = name;
+        this.qualifiedName = null;
+        this.answers = null;
     }
 
     /**
@@ -211,7 +222,27 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
      */
     public String getQualifiedName()
     {
-        return name + "." + type;
+        return getQualifiedDNSName().toString();
+    }
+
+    public DNSName getQualifiedDNSName()
+    {
+        DNSName result = qualifiedName;
+        if (result == null)
+        {
+            result = DNSName.get(name + "." + type);
+            qualifiedName = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the lower case form of the qualified name, which is what the
+     * registered services are keyed by.
+     */
+    String getKey()
+    {
+        return getQualifiedDNSName().getKey();
     }
 
     /**
@@ -487,29 +518,38 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
             switch (rec.type)
             {
                 case DNSConstants.TYPE_A:		// IPv4
-                case DNSConstants.TYPE_AAAA:	// IPv6 FIXME [PJYF Oct 14 2004] This has not been tested
                     if (rec.name.equals(server))
                     {
                         addr = ((DNSRecord.Address) rec).getAddress();
 
                     }
                     break;
+                case DNSConstants.TYPE_AAAA:	// IPv6
+                    // An IPv4 address is preferred, IPv6 is only used for
+                    // hosts which have none.
+                    if (rec.name.equals(server) && !(addr instanceof Inet4Address))
+                    {
+                        addr = ((DNSRecord.Address) rec).getAddress();
+                    }
+                    break;
                 case DNSConstants.TYPE_SRV:
-                    if (rec.name.equals(getQualifiedName()))
+                    if (rec.dnsName == getQualifiedDNSName())
                     {
                         DNSRecord.Service srv = (DNSRecord.Service) rec;
-                        server = srv.server;
+                        server = srv.getServer();
                         port = srv.port;
                         weight = srv.weight;
                         priority = srv.priority;
                         addr = null;
+                        answers = null;
                         // changed to use getCache() instead - jeffs
                         // updateRecord(jmdns, now, (DNSRecord)jmdns.cache.get(server, TYPE_A, CLASS_IN));
                         updateRecord(jmdns, now, (DNSRecord) jmdns.getCache().get(server, DNSConstants.TYPE_A, DNSConstants.CLASS_IN));
+                        updateRecord(jmdns, now, (DNSRecord) jmdns.getCache().get(server, DNSConstants.TYPE_AAAA, DNSConstants.CLASS_IN));
                     }
                     break;
                 case DNSConstants.TYPE_TXT:
-                    if (rec.name.equals(getQualifiedName()))
+                    if (rec.dnsName == getQualifiedDNSName())
                     {
                         DNSRecord.Text txt = (DNSRecord.Text) rec;
                         setText(txt.text);
@@ -579,12 +619,12 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
 
     public int hashCode()
     {
-        return getQualifiedName().hashCode();
+        return getQualifiedDNSName().hashCode();
     }
 
     public boolean equals(Object obj)
     {
-        return (obj instanceof ServiceInfoImpl) && getQualifiedName().equals(((ServiceInfoImpl) obj).getQualifiedName());
+        return (obj instanceof ServiceInfoImpl) && getQualifiedDNSName() == ((ServiceInfoImpl) obj).getQualifiedDNSName();
     }
 
     public String getNiceTextString()
@@ -626,8 +666,31 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
         return buf.toString();
     }
 
+    /**
+     * Returns the PTR, SRV and TXT records of this service for a host, with
+     * the default TTL.
+     */
+    public Answers getAnswers(HostInfo localHost)
+    {
+        Answers result = answers;
+        if ((result == null) || !result.hostName.equals(localHost.getName()))
+        {
+            result = new Answers(this, localHost.getName());
+            answers = result;
+        }
+        return result;
+    }
+
 	public void addAnswers(DNSOutgoing out, int ttl, HostInfo localHost) throws IOException
     {
+        if (ttl == DNSConstants.DNS_TTL)
+        {
+            final Answers shared = getAnswers(localHost);
+            out.addAnswer(shared.pointer, 0);
+            out.addAnswer(shared.service, 0);
+            out.addAnswer(shared.text, 0);
+            return;
+        }
         out.addAnswer(new Pointer(type, DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, ttl,
                 getQualifiedName()), 0);
         out.addAnswer(new Service(getQualifiedName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN|DNSConstants.CLASS_UNIQUE,
@@ -636,12 +699,12 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
                 ttl, getText()), 0);
     }
 
-    public void setTask(TimerTask task)
+    public void setTask(DNSTask task)
     {
         this.task = task;
     }
 
-    public TimerTask getTask()
+    public DNSTask getTask()
     {
         return task;
     }
@@ -649,6 +712,7 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
     public void setText(byte [] text)
     {
         this.text = text;
+        this.answers = null;
     }
 
     public byte [] getText()
@@ -665,4 +729,47 @@ public class ServiceInfoImpl extends ServiceInfo implements DNSListener
     {
         return dns;
     }
+
+    /**
+     * The records answering for a registered service: its PTR, SRV and TXT
+     * records, with the default TTL. The records are shared by all answers,
+     * and must not be modified. They are pre-encoded, see WireTemplate.
+     */
+    public static final class Answers
+    {
+        final String hostName;
+        private final DNSRecord pointer;
+        private final DNSRecord service;
+        private final DNSRecord text;
+
+        Answers(ServiceInfoImpl info, String hostName)
+        {
+            this.hostName = hostName;
+            this.pointer = new Pointer(info.type, DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN,
+                    DNSConstants.DNS_TTL, info.getQualifiedName());
+            this.service = new Service(info.getQualifiedName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN
+                    | DNSConstants.CLASS_UNIQUE, DNSConstants.DNS_TTL, info.priority, info.weight, info.port,
+                    hostName);
+            this.text = new Text(info.getQualifiedName(), DNSConstants.TYPE_TXT, DNSConstants.CLASS_IN
+                    | DNSConstants.CLASS_UNIQUE, DNSConstants.DNS_TTL, info.getText());
+            pointer.preEncode();
+            service.preEncode();
+            text.preEncode();
+        }
+
+        public DNSRecord getPointer()
+        {
+            return pointer;
+        }
+
+        public DNSRecord getService()
+        {
+            return service;
+        }
+
+        public DNSRecord getText()
+        {
+            return text;
+        }
+    }
 }
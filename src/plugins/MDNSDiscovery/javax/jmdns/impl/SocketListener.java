@@ -6,82 +6,197 @@ package plugins.MDNSDiscovery.javax.jmdns.impl;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Listen for multicast packets.
+ * <p/>
+ * A single thread waits on a selector for any of the registered datagram
+ * channels to become readable. It does nothing but receive: every datagram is
+ * copied out of the receive buffer and handed over to the
+ * <code>PacketProcessor</code>, which parses and handles it. The receive
+ * thread never takes the JmDNS I/O lock.
  */
 class SocketListener implements Runnable
 {
     static Logger logger = Logger.getLogger(SocketListener.class.getName());
 
     /**
-     * 
+     *
      */
     private final JmDNSImpl jmDNSImpl;
 
+    /**
+     * The stage incoming datagrams are handed over to.
+     */
+    private final PacketProcessor processor;
+
+    private final Selector selector;
+
+    /**
+     * Channels added with addChannel(), which still need to be registered
+     * with the selector, each paired with its protocol family. Registration
+     * has to happen on the selector thread, otherwise it blocks until the
+     * current select() returns.
+     */
+    private final List pendingChannels = new LinkedList();
+
+    /**
+     * Receive buffer, reused for every datagram.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(DNSConstants.MAX_MSG_ABSOLUTE);
+
+    private Thread thread;
+
+    private volatile boolean closed = false;
+
     /**
      * @param jmDNSImpl
+     * @param processor
      */
-    SocketListener(JmDNSImpl jmDNSImpl)
+    SocketListener(JmDNSImpl jmDNSImpl, PacketProcessor processor) throws IOException
     {
         this.jmDNSImpl = jmDNSImpl;
+        this.processor = processor;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts watching a channel. The channel is switched to non-blocking mode.
+     * Only datagrams sent from an address of the given protocol family are
+     * accepted on the channel.
+     */
+    void addChannel(DatagramChannel channel, ProtocolFamily family) throws IOException
+    {
+        channel.configureBlocking(false);
+        synchronized (pendingChannels)
+        {
+            pendingChannels.add(new Object[] { channel, family });
+        }
+        selector.wakeup();
+    }
+
+    void start()
+    {
+        thread = new Thread(this, "JmDNS.SocketListener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the receive thread. The channels themselves are not closed.
+     */
+    void close()
+    {
+        closed = true;
+        try
+        {
+            selector.close();
+        }
+        catch (IOException exception)
+        {
+            logger.log(Level.WARNING, "close() exception ", exception);
+        }
+        if (thread != null && thread != Thread.currentThread())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                // empty
+            }
+        }
+    }
+
+    private void registerPendingChannels() throws IOException
+    {
+        synchronized (pendingChannels)
+        {
+            for (Iterator i = pendingChannels.iterator(); i.hasNext();)
+            {
+                Object[] pending = (Object[]) i.next();
+                ((DatagramChannel) pending[0]).register(selector, SelectionKey.OP_READ, pending[1]);
+            }
+            pendingChannels.clear();
+        }
+    }
+
+    /**
+     * Drains all datagrams currently queued on a channel.
+     */
+    private void receive(DatagramChannel channel, ProtocolFamily family) throws IOException
+    {
+        while (true)
+        {
+            buffer.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+            if (from == null)
+            {
+                break;
+            }
+            // On a dual-stack host the IPv6 channel also receives the IPv4
+            // datagrams, which are already handled by the IPv4 channel.
+            if ((from.getAddress() instanceof Inet4Address) != (family == StandardProtocolFamily.INET))
+            {
+                continue;
+            }
+            buffer.flip();
+            byte data[] = new byte[buffer.remaining()];
+            buffer.get(data);
+            this.jmDNSImpl.tapReceived(data, 0, data.length, from);
+            processor.enqueue(new DatagramPacket(data, data.length, from));
+        }
     }
 
     public void run()
     {
         try
         {
-            byte buf[] = new byte[DNSConstants.MAX_MSG_ABSOLUTE];
-            DatagramPacket packet = new DatagramPacket(buf, buf.length);
-            while (this.jmDNSImpl.getState() != DNSState.CANCELED)
+            while (!closed)
             {
-                packet.setLength(buf.length);
-                this.jmDNSImpl.getSocket().receive(packet);
-                if (this.jmDNSImpl.getState() == DNSState.CANCELED)
+                registerPendingChannels();
+                selector.select();
+                if (closed)
                 {
                     break;
                 }
-                try
+                for (Iterator i = selector.selectedKeys().iterator(); i.hasNext();)
                 {
-                    if (this.jmDNSImpl.getLocalHost().shouldIgnorePacket(packet))
+                    SelectionKey key = (SelectionKey) i.next();
+                    i.remove();
+                    if (key.isValid() && key.isReadable())
                     {
-                        continue;
-                    }
-
-                    DNSIncoming msg = new DNSIncoming(packet);
-                    logger.finest("SocketListener.run() JmDNS in:" + msg.print(true));
-
-                    synchronized (this.jmDNSImpl.getIoLock())
-                    {
-                        if (msg.isQuery())
-                        {
-                            if (packet.getPort() != DNSConstants.MDNS_PORT)
-                            {
-                                this.jmDNSImpl.handleQuery(msg, packet.getAddress(), packet.getPort());
-                            }
-                            this.jmDNSImpl.handleQuery(msg, this.jmDNSImpl.getGroup(), DNSConstants.MDNS_PORT);
-                        }
-                        else
-                        {
-                            this.jmDNSImpl.handleResponse(msg);
-                        }
+                        receive((DatagramChannel) key.channel(), (ProtocolFamily) key.attachment());
                     }
                 }
-                catch (IOException e)
-                {
-                    logger.log(Level.WARNING, "run() exception ", e);
-                }
             }
         }
+        catch (ClosedSelectorException e)
+        {
+            // we are shutting down
+        }
         catch (IOException e)
         {
-            if (this.jmDNSImpl.getState() != DNSState.CANCELED)
+            if (!closed && this.jmDNSImpl.getState() != DNSState.CANCELED)
             {
                 logger.log(Level.WARNING, "run() exception ", e);
                 this.jmDNSImpl.recover();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives a copy of every datagram JmDNS sends or receives, for debugging.
+ * <p/>
+ * A wire tap is installed with <code>JmDNSImpl.setWireTap()</code>. When
+ * none is installed, sending and receiving do no work for it at all.
+ * <p/>
+ * The methods are called on the receive thread and on the threads that
+ * send, so implementations must be thread safe, should be quick, and must
+ * not throw. The data must be copied if it is kept, the buffer is reused
+ * after the call returns.
+ *
+ * @see PcapWireTap
+ * @see RingWireTap
+ */
+public interface WireTap
+{
+    /**
+     * Called for a datagram.
+     *
+     * @param outbound
+     *      true if JmDNS sent the datagram, false if it received it.
+     * @param data
+     *      the buffer holding the DNS message.
+     * @param off
+     *      the offset of the message in the buffer.
+     * @param len
+     *      the length of the message.
+     * @param source
+     *      the address the datagram was sent from.
+     * @param destination
+     *      the address the datagram was sent to. For received datagrams this
+     *      is the multicast group, even if the datagram was sent unicast.
+     */
+    void datagram(boolean outbound, byte[] data, int off, int len, InetSocketAddress source,
+            InetSocketAddress destination);
+
+    /**
+     * Called when the tap is removed, or JmDNS is closed.
+     */
+    void close();
+}
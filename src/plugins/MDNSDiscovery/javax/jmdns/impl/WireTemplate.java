@@ -0,0 +1,106 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl;
+
+import java.io.IOException;
+
+/**
+ * A record encoded in wire format once, for the records we answer with
+ * over and over again: the address records of the host and the records of
+ * the registered services. DNSOutgoing copies the bytes into the message,
+ * and patches the class, the TTL and the compression pointers.
+ * <p/>
+ * The record is compressed on its own, so that the name in the data of a
+ * PTR record points into its owner name. It does not point into the rest
+ * of the message, which takes a few more bytes than writing the record
+ * with DNSRecord.write().
+ */
+final class WireTemplate
+{
+    /**
+     * The offset a message starts writing records at, after the header.
+     * The compression pointers in data are relative to this.
+     */
+    static final int BASE = 12;
+
+    /**
+     * The encoded record.
+     */
+    final byte[] data;
+    /**
+     * The offset of the class field in data.
+     */
+    final int classOffset;
+    /**
+     * The offset of the TTL field in data.
+     */
+    final int ttlOffset;
+    /**
+     * The offsets of the compression pointers in data.
+     */
+    final int[] pointers;
+
+    private WireTemplate(byte[] data, int classOffset, int[] pointers)
+    {
+        this.data = data;
+        this.classOffset = classOffset;
+        this.ttlOffset = classOffset + 2;
+        this.pointers = pointers;
+    }
+
+    /**
+     * Encode a record. Returns null if the record does not fit in a
+     * message.
+     */
+    static WireTemplate encode(DNSRecord rec)
+    {
+        final DNSOutgoing out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+        try
+        {
+            out.writeRecord(rec, 0);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        final byte[] data = new byte[out.off - BASE];
+        System.arraycopy(out.data, BASE, data, 0, data.length);
+
+        // the owner name is written first, so it is never compressed
+        final int nameEnd = -findPointer(data, 0);
+        int[] pointers = new int[0];
+        if (rec instanceof DNSRecord.Pointer)
+        {
+            // the data is a single name, which may end with a pointer
+            final int pointer = findPointer(data, nameEnd + 10);
+            if (pointer >= 0)
+            {
+                pointers = new int[] { pointer };
+            }
+        }
+        return new WireTemplate(data, nameEnd + 2, pointers);
+    }
+
+    /**
+     * Returns the offset of the pointer the name at an offset ends with, or
+     * minus the offset after the name if it ends with the root label.
+     */
+    private static int findPointer(byte[] data, int at)
+    {
+        while (true)
+        {
+            final int len = data[at] & 0xFF;
+            if (len == 0)
+            {
+                return -(at + 1);
+            }
+            if ((len & 0xC0) == 0xC0)
+            {
+                return at;
+            }
+            at += 1 + len;
+        }
+    }
+}
@@ -7,14 +7,15 @@ package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
@@ -25,7 +26,7 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
  * <p/>
  * When the announcer has run two times, it finishes.
  */
-public class Announcer extends TimerTask
+public class Announcer extends DNSTask
 {
     static Logger logger = Logger.getLogger(Announcer.class.getName());
 
@@ -60,9 +61,9 @@ public class Announcer extends TimerTask
         }
     }
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
-        timer.schedule(this, DNSConstants.ANNOUNCE_WAIT_INTERVAL, DNSConstants.ANNOUNCE_WAIT_INTERVAL);
+        scheduler.schedule(this, DNSConstants.ANNOUNCE_WAIT_INTERVAL, DNSConstants.ANNOUNCE_WAIT_INTERVAL);
     }
 
     public boolean cancel()
@@ -91,20 +92,16 @@ public class Announcer extends TimerTask
 
     public void run()
     {
-        DNSOutgoing out = null;
         try
         {
-            // send probes for JmDNS itself
+            // announce JmDNS itself
+            boolean announceHost = false;
             if (this.jmDNSImpl.getState() == taskState)
             {
-                if (out == null)
-                {
-                    out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
-                }
-                this.jmDNSImpl.getLocalHost().addAddressRecords(out, false);
+                announceHost = true;
                 this.jmDNSImpl.advanceState();
             }
-            // send announces for services
+            // announce services
             // Defensively copy the services into a local list,
             // to prevent race conditions with methods registerService
             // and unregisterService.
@@ -113,6 +110,7 @@ public class Announcer extends TimerTask
             {
                 list = new ArrayList(this.jmDNSImpl.getServices().values());
             }
+            List announced = new ArrayList();
             for (Iterator i = list.iterator(); i.hasNext();)
             {
                 ServiceInfoImpl info = (ServiceInfoImpl) i.next();
@@ -122,18 +120,29 @@ public class Announcer extends TimerTask
                     {
                         info.advanceState();
                         logger.finer("run() JmDNS announcing " + info.getQualifiedName() + " state " + info.getState());
-                        if (out == null)
-                        {
-                            out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
-                        }
-                        info.addAnswers(out, DNSConstants.DNS_TTL, this.jmDNSImpl.getLocalHost());
+                        announced.add(info);
                     }
                 }
             }
-            if (out != null)
+            if (announceHost || !announced.isEmpty())
             {
                 logger.finer("run() JmDNS announcing #" + taskState);
-                this.jmDNSImpl.send(out);
+                // send the announces on every interface, each with the
+                // address records of that interface
+                for (Iterator i = this.jmDNSImpl.getHostInfos().iterator(); i.hasNext();)
+                {
+                    HostInfo hostInfo = (HostInfo) i.next();
+                    DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+                    if (announceHost)
+                    {
+                        hostInfo.addAddressRecords(out, false);
+                    }
+                    for (Iterator j = announced.iterator(); j.hasNext();)
+                    {
+                        ((ServiceInfoImpl) j.next()).addAnswers(out, DNSConstants.DNS_TTL, hostInfo);
+                    }
+                    this.jmDNSImpl.send(out, hostInfo);
+                }
             }
             else
             {
@@ -156,4 +165,4 @@ public class Announcer extends TimerTask
             this.jmDNSImpl.startRenewer();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,123 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
+
+/**
+ * Revalidates the records reloaded from a cache snapshot. Once JmDNS has
+ * announced itself, the CacheRevalidator asks for all of them at once, with
+ * as few query messages as they fit in. The records that have not been
+ * confirmed by an answer after DNSConstants.REVALIDATION_WAIT_INTERVAL are
+ * removed from the cache, and then the CacheRevalidator removes itself from
+ * the scheduler.
+ */
+public class CacheRevalidator extends DNSTask
+{
+    static Logger logger = Logger.getLogger(CacheRevalidator.class.getName());
+
+    /**
+     *
+     */
+    private final JmDNSImpl jmDNSImpl;
+    /**
+     * The reloaded records.
+     */
+    private final List records;
+    /**
+     * The time the query was sent, or 0 if it was not sent yet.
+     */
+    private long sent = 0;
+
+    public CacheRevalidator(JmDNSImpl jmDNSImpl, List records)
+    {
+        this.jmDNSImpl = jmDNSImpl;
+        this.records = records;
+    }
+
+    public void start(DNSTaskScheduler scheduler)
+    {
+        scheduler.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
+    }
+
+    public void run()
+    {
+        try
+        {
+            if (this.jmDNSImpl.getState() == DNSState.CANCELED)
+            {
+                this.cancel();
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (sent == 0)
+            {
+                if (this.jmDNSImpl.getState() == DNSState.ANNOUNCED)
+                {
+                    logger.finer("run() JmDNS revalidating " + records.size() + " reloaded records");
+                    // Answers to the query are received after this time
+                    sent = now;
+                    query();
+                }
+            }
+            else if (now - sent >= DNSConstants.REVALIDATION_WAIT_INTERVAL)
+            {
+                this.jmDNSImpl.expireUnconfirmed(records, sent);
+                this.cancel();
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.log(Level.WARNING, "run() exception ", e);
+            this.jmDNSImpl.recover();
+        }
+    }
+
+    /**
+     * Ask for every name and type of the reloaded records, starting a new
+     * message whenever one is full. Known answers are left out, so that
+     * every record that is still valid gets answered.
+     */
+    private void query() throws IOException
+    {
+        final Set asked = new HashSet();
+        DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+        for (final Iterator i = records.iterator(); i.hasNext();)
+        {
+            final DNSRecord rec = (DNSRecord) i.next();
+            final DNSQuestion question = new DNSQuestion(rec.getName(), rec.getType(), DNSConstants.CLASS_IN);
+            if (!asked.add(question))
+            {
+                continue;
+            }
+            try
+            {
+                out.addQuestion(question);
+            }
+            catch (IOException e)
+            {
+                this.jmDNSImpl.send(out);
+                out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+                out.addQuestion(question);
+            }
+        }
+        this.jmDNSImpl.send(out);
+    }
+}
@@ -0,0 +1,55 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
+
+/**
+ * Writes a snapshot of the cache every DNSConstants.CACHE_SNAPSHOT_INTERVAL,
+ * so that little is lost if JmDNS is not closed properly.
+ */
+public class CacheSnapshotter extends DNSTask
+{
+    static Logger logger = Logger.getLogger(CacheSnapshotter.class.getName());
+
+    /**
+     *
+     */
+    private final JmDNSImpl jmDNSImpl;
+
+    public CacheSnapshotter(JmDNSImpl jmDNSImpl)
+    {
+        this.jmDNSImpl = jmDNSImpl;
+    }
+
+    public void start(DNSTaskScheduler scheduler)
+    {
+        scheduler.schedule(this, DNSConstants.CACHE_SNAPSHOT_INTERVAL, DNSConstants.CACHE_SNAPSHOT_INTERVAL);
+    }
+
+    public void run()
+    {
+        try
+        {
+            // The scheduler is cancelled when JmDNS is closed. While JmDNS
+            // recovers, the cache is being cleared.
+            if (this.jmDNSImpl.getState() != DNSState.CANCELED)
+            {
+                this.jmDNSImpl.saveCache();
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.log(Level.WARNING, "run() exception ", e);
+        }
+    }
+}
@@ -5,21 +5,24 @@
 package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 
 import java.util.Collection;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
 /**
- * The Canceler sends two announces with TTL=0 for the specified services.
+ * The Canceler sends two announces with TTL=0 for the specified services,
+ * on every interface.
  */
-public class Canceler extends TimerTask
+public class Canceler extends DNSTask
 {
     static Logger logger = Logger.getLogger(Canceler.class.getName());
 
@@ -73,9 +76,9 @@ public class Canceler extends TimerTask
         this.lock = lock;
     }
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
-        timer.schedule(this, 0, DNSConstants.ANNOUNCE_WAIT_INTERVAL);
+        scheduler.schedule(this, 0, DNSConstants.ANNOUNCE_WAIT_INTERVAL);
     }
 
     public void run()
@@ -87,15 +90,19 @@ public class Canceler extends TimerTask
                 logger.finer("run() JmDNS canceling service");
                 // announce the service
                 //long now = System.currentTimeMillis();
-                DNSOutgoing out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
-                for (int i = 0; i < infos.length; i++)
+                for (Iterator j = this.jmDNSImpl.getHostInfos().iterator(); j.hasNext();)
                 {
-                    ServiceInfoImpl info = infos[i];
-                    info.addAnswers(out, ttl, this.jmDNSImpl.getLocalHost());
+                    HostInfo hostInfo = (HostInfo) j.next();
+                    DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+                    for (int i = 0; i < infos.length; i++)
+                    {
+                        ServiceInfoImpl info = infos[i];
+                        info.addAnswers(out, ttl, hostInfo);
 
-                    this.jmDNSImpl.getLocalHost().addAddressRecords(out, false);
+                        hostInfo.addAddressRecords(out, false);
+                    }
+                    this.jmDNSImpl.send(out, hostInfo);
                 }
-                this.jmDNSImpl.send(out);
             }
             else
             {
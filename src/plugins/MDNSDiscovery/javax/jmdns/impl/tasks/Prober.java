@@ -7,8 +7,6 @@ package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +15,9 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
@@ -31,7 +32,7 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
  * host name) are taken away from the prober. This eventually causes the prober
  * tho cancel itself.
  */
-public class Prober extends TimerTask
+public class Prober extends DNSTask
 {
     static Logger logger = Logger.getLogger(Prober.class.getName());
 
@@ -67,7 +68,7 @@ public class Prober extends TimerTask
     }
 
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
         long now = System.currentTimeMillis();
         if (now - this.jmDNSImpl.getLastThrottleIncrement() < DNSConstants.PROBE_THROTTLE_COUNT_INTERVAL)
@@ -82,11 +83,11 @@ public class Prober extends TimerTask
 
         if (this.jmDNSImpl.getState() == DNSState.ANNOUNCED && this.jmDNSImpl.getThrottle() < DNSConstants.PROBE_THROTTLE_COUNT)
         {
-            timer.schedule(this, JmDNSImpl.getRandom().nextInt(1 + DNSConstants.PROBE_WAIT_INTERVAL), DNSConstants.PROBE_WAIT_INTERVAL);
+            scheduler.schedule(this, JmDNSImpl.getRandom().nextInt(1 + DNSConstants.PROBE_WAIT_INTERVAL), DNSConstants.PROBE_WAIT_INTERVAL);
         }
         else
         {
-            timer.schedule(this, DNSConstants.PROBE_CONFLICT_INTERVAL, DNSConstants.PROBE_CONFLICT_INTERVAL);
+            scheduler.schedule(this, DNSConstants.PROBE_CONFLICT_INTERVAL, DNSConstants.PROBE_CONFLICT_INTERVAL);
         }
     }
 
@@ -118,22 +119,16 @@ public class Prober extends TimerTask
     {
         synchronized (this.jmDNSImpl.getIoLock())
         {
-            DNSOutgoing out = null;
             try
             {
-                // send probes for JmDNS itself
+                // probe for JmDNS itself
+                boolean probeHost = false;
                 if (this.jmDNSImpl.getState() == taskState && this.jmDNSImpl.getTask() == this)
                 {
-                    if (out == null)
-                    {
-                        out = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
-                    }
-                    out.addQuestion(new DNSQuestion(this.jmDNSImpl.getLocalHost().getName(), DNSConstants.TYPE_ANY, DNSConstants.CLASS_IN));
-
-                    this.jmDNSImpl.getLocalHost().addAddressRecords(out, true);
+                    probeHost = true;
                     this.jmDNSImpl.advanceState();
                 }
-                // send probes for services
+                // probe for services
                 // Defensively copy the services into a local list,
                 // to prevent race conditions with methods registerService
                 // and unregisterService.
@@ -142,6 +137,7 @@ public class Prober extends TimerTask
                 {
                     list = new LinkedList(this.jmDNSImpl.getServices().values());
                 }
+                List probed = new LinkedList();
                 for (Iterator i = list.iterator(); i.hasNext();)
                 {
                     ServiceInfoImpl info = (ServiceInfoImpl) i.next();
@@ -152,31 +148,46 @@ public class Prober extends TimerTask
                         {
                             info.advanceState();
                             logger.fine("run() JmDNS probing " + info.getQualifiedName() + " state " + info.getState());
-                            if (out == null)
-                            {
-                                out = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
-                                out.addQuestion(new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_ANY, DNSConstants.CLASS_IN));
-                            }
-                            // the "unique" flag should be not set here because these answers haven't been proven unique yet
-                            // this means the record will not exactly match the announcement record
-                            out.addAuthorativeAnswer(new DNSRecord.Service(info.getQualifiedName(), 
-                                    DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, 
-                                    info.getPriority(), info.getWeight(), info.getPort(), this.jmDNSImpl.getLocalHost().getName()));
+                            probed.add(info);
                         }
                     }
                 }
-                if (out != null)
-                {
-                    logger.finer("run() JmDNS probing #" + taskState);
-                    this.jmDNSImpl.send(out);
-                }
-                else
+                if (!probeHost && probed.isEmpty())
                 {
                     // If we have nothing to send, another timer taskState ahead
                     // of us has done the job for us. We can cancel.
                     cancel();
                     return;
                 }
+
+                logger.finer("run() JmDNS probing #" + taskState);
+                // send the probes on every interface, each with the address
+                // records of that interface
+                for (Iterator i = this.jmDNSImpl.getHostInfos().iterator(); i.hasNext();)
+                {
+                    HostInfo hostInfo = (HostInfo) i.next();
+                    DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+                    if (probeHost)
+                    {
+                        out.addQuestion(new DNSQuestion(hostInfo.getName(), DNSConstants.TYPE_ANY, DNSConstants.CLASS_IN));
+                        hostInfo.addAddressRecords(out, true);
+                    }
+                    else
+                    {
+                        ServiceInfoImpl info = (ServiceInfoImpl) probed.get(0);
+                        out.addQuestion(new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_ANY, DNSConstants.CLASS_IN));
+                    }
+                    for (Iterator j = probed.iterator(); j.hasNext();)
+                    {
+                        ServiceInfoImpl info = (ServiceInfoImpl) j.next();
+                        // the "unique" flag should be not set here because these answers haven't been proven unique yet
+                        // this means the record will not exactly match the announcement record
+                        out.addAuthorativeAnswer(new DNSRecord.Service(info.getQualifiedName(), 
+                                DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, 
+                                info.getPriority(), info.getWeight(), info.getPort(), hostInfo.getName()));
+                    }
+                    this.jmDNSImpl.send(out, hostInfo);
+                }
             }
             catch (Throwable e)
             {
@@ -194,4 +205,4 @@ public class Prober extends TimerTask
         }
     }
 
-}
\ No newline at end of file
+}
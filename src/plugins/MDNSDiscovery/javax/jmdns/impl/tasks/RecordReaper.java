@@ -4,23 +4,24 @@
 
 package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 
-import plugins.MDNSDiscovery.javax.jmdns.impl.DNSCache;
-import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 
 /**
- * Periodicaly removes expired entries from the cache.
+ * Removes expired entries from the cache.
+ * <p/>
+ * The reaper runs once, when the earliest record in the cache is due to
+ * expire, see JmDNSImpl.scheduleReaper(). It only looks at the records that
+ * are due, and then schedules the next reaper.
  */
-public class RecordReaper extends TimerTask
+public class RecordReaper extends DNSTask
 {
     static Logger logger = Logger.getLogger(RecordReaper.class.getName());
 
@@ -37,47 +38,30 @@ public class RecordReaper extends TimerTask
         this.jmDNSImpl = jmDNSImpl;
     }
 
-    public void start(Timer timer)
+    /**
+     * Schedules the reaper to run at a given time.
+     */
+    public void start(DNSTaskScheduler scheduler, long time)
     {
-        timer.schedule(this, DNSConstants.RECORD_REAPER_INTERVAL, DNSConstants.RECORD_REAPER_INTERVAL);
+        scheduler.schedule(this, Math.max(0, time - System.currentTimeMillis()));
     }
 
     public void run()
     {
-        synchronized (this.jmDNSImpl)
+        if (this.jmDNSImpl.getState() != DNSState.CANCELED)
         {
-            if (this.jmDNSImpl.getState() == DNSState.CANCELED)
-            {
-                return;
-            }
             logger.finest("run() JmDNS reaping cache");
 
             // Remove expired answers from the cache
             // -------------------------------------
-            // To prevent race conditions, we defensively copy all cache
-            // entries into a list.
-            List list = new ArrayList();
-            synchronized (this.jmDNSImpl.getCache())
-            {
-                for (Iterator i = this.jmDNSImpl.getCache().iterator(); i.hasNext();)
-                {
-                    for (DNSCache.CacheNode n = (DNSCache.CacheNode) i.next(); n != null; n = n.next())
-                    {
-                        list.add(n.getValue());
-                    }
-                }
-            }
-            // Now, we remove them.
             long now = System.currentTimeMillis();
-            for (Iterator i = list.iterator(); i.hasNext();)
+            List expired = this.jmDNSImpl.getCache().pollExpired(now);
+            for (Iterator i = expired.iterator(); i.hasNext();)
             {
-                DNSRecord c = (DNSRecord) i.next();
-                if (c.isExpired(now))
-                {
-                    this.jmDNSImpl.updateRecord(now, c);
-                    this.jmDNSImpl.getCache().remove(c);
-                }
+                this.jmDNSImpl.updateRecord(now, (DNSRecord) i.next());
             }
         }
+        // Always, so that the next reaper can be scheduled
+        this.jmDNSImpl.reaperDone(this);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+//Copyright 2003-2005 Arthur van Hoff, Rick Blair
+//Licensed under Apache License version 2.0
+//Original license LGPL
+
+package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSCache;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
+
+/**
+ * Queries for watched records before they expire, so that services that
+ * are still there do not disappear from the listeners between two
+ * announcements.
+ * <p/>
+ * The refresher runs once, when the next record is due, see
+ * JmDNSImpl.scheduleRefresher(). It asks for all records that are due with
+ * one query, and then schedules the next refresher. The query carries the
+ * records of the same names and types that are not due as known answers,
+ * so that only the records being refreshed get answered.
+ */
+public class RecordRefresher extends DNSTask
+{
+    static Logger logger = Logger.getLogger(RecordRefresher.class.getName());
+
+    /**
+     *
+     */
+    private final JmDNSImpl jmDNSImpl;
+
+    public RecordRefresher(JmDNSImpl jmDNSImpl)
+    {
+        this.jmDNSImpl = jmDNSImpl;
+    }
+
+    /**
+     * Schedules the refresher to run at a given time.
+     */
+    public void start(DNSTaskScheduler scheduler, long time)
+    {
+        scheduler.schedule(this, Math.max(0, time - System.currentTimeMillis()));
+    }
+
+    public void run()
+    {
+        try
+        {
+            if (this.jmDNSImpl.getState() == DNSState.CANCELED)
+            {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final List due = this.jmDNSImpl.pollRefreshes(now);
+            if (!due.isEmpty() && (this.jmDNSImpl.getState() == DNSState.ANNOUNCED))
+            {
+                logger.finer("run() JmDNS refreshing " + due.size() + " records");
+                query(due, now);
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.log(Level.WARNING, "run() exception ", e);
+        }
+        finally
+        {
+            // Always, so that the next refresher can be scheduled
+            this.jmDNSImpl.refresherDone(this);
+        }
+    }
+
+    /**
+     * Ask for the names and types of the records, starting a new message
+     * whenever one is full.
+     */
+    private void query(List due, long now) throws IOException
+    {
+        final List questions = new ArrayList();
+        for (final Iterator i = due.iterator(); i.hasNext();)
+        {
+            final DNSRecord rec = (DNSRecord) i.next();
+            final DNSQuestion question = new DNSQuestion(rec.getName(), rec.getType(), DNSConstants.CLASS_IN);
+            if (!questions.contains(question))
+            {
+                questions.add(question);
+            }
+        }
+
+        int next = 0;
+        while (next < questions.size())
+        {
+            final DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+            final int first = next;
+            try
+            {
+                for (; next < questions.size(); next++)
+                {
+                    out.addQuestion((DNSQuestion) questions.get(next));
+                }
+            }
+            catch (IOException e)
+            {
+                // the message is full
+                if (next == first)
+                {
+                    // the question does not fit in a message, the empty
+                    // message is only put back into the pool
+                    next++;
+                    this.jmDNSImpl.send(out);
+                    continue;
+                }
+            }
+            try
+            {
+                for (int i = first; i < next; i++)
+                {
+                    final DNSQuestion question = (DNSQuestion) questions.get(i);
+                    for (DNSCache.CacheNode n = this.jmDNSImpl.getCache().find(question.getDNSName(),
+                            question.getType(), DNSConstants.CLASS_IN); n != null; n = n.next())
+                    {
+                        final DNSRecord known = (DNSRecord) n.getValue();
+                        if (!due.contains(known))
+                        {
+                            out.addAnswer(known, now);
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // no room for more known answers
+            }
+            this.jmDNSImpl.send(out);
+        }
+    }
+}
@@ -7,21 +7,22 @@ package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSConstants;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
 /**
  * The Renewer is there to send renewal announcment when the record expire for ours infos.
  */
-public class Renewer extends TimerTask
+public class Renewer extends DNSTask
 {
     static Logger logger = Logger.getLogger(Renewer.class.getName());
 
@@ -56,9 +57,9 @@ public class Renewer extends TimerTask
         }
     }
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
-        timer.schedule(this, DNSConstants.ANNOUNCED_RENEWAL_TTL_INTERVAL, DNSConstants.ANNOUNCED_RENEWAL_TTL_INTERVAL);
+        scheduler.schedule(this, DNSConstants.ANNOUNCED_RENEWAL_TTL_INTERVAL, DNSConstants.ANNOUNCED_RENEWAL_TTL_INTERVAL);
     }
 
     public boolean cancel()
@@ -87,20 +88,16 @@ public class Renewer extends TimerTask
 
     public void run()
     {
-        DNSOutgoing out = null;
         try
         {
-            // send probes for JmDNS itself
+            // renew JmDNS itself
+            boolean renewHost = false;
             if (this.jmDNSImpl.getState() == taskState)
             {
-                if (out == null)
-                {
-                    out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
-                }
-                this.jmDNSImpl.getLocalHost().addAddressRecords(out, false);
+                renewHost = true;
                 this.jmDNSImpl.advanceState();
             }
-            // send announces for services
+            // renew services
             // Defensively copy the services into a local list,
             // to prevent race conditions with methods registerService
             // and unregisterService.
@@ -109,6 +106,7 @@ public class Renewer extends TimerTask
             {
                 list = new ArrayList(this.jmDNSImpl.getServices().values());
             }
+            List renewed = new ArrayList();
             for (Iterator i = list.iterator(); i.hasNext();)
             {
                 ServiceInfoImpl info = (ServiceInfoImpl) i.next();
@@ -118,18 +116,29 @@ public class Renewer extends TimerTask
                     {
                         info.advanceState();
                         logger.finer("run() JmDNS announced " + info.getQualifiedName() + " state " + info.getState());
-                        if (out == null)
-                        {
-                            out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
-                        }
-                        info.addAnswers(out, DNSConstants.DNS_TTL, this.jmDNSImpl.getLocalHost());
+                        renewed.add(info);
                     }
                 }
             }
-            if (out != null)
+            if (renewHost || !renewed.isEmpty())
             {
                 logger.finer("run() JmDNS announced");
-                this.jmDNSImpl.send(out);
+                // send the announces on every interface, each with the
+                // address records of that interface
+                for (Iterator i = this.jmDNSImpl.getHostInfos().iterator(); i.hasNext();)
+                {
+                    HostInfo hostInfo = (HostInfo) i.next();
+                    DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+                    if (renewHost)
+                    {
+                        hostInfo.addAddressRecords(out, false);
+                    }
+                    for (Iterator j = renewed.iterator(); j.hasNext();)
+                    {
+                        ((ServiceInfoImpl) j.next()).addAnswers(out, DNSConstants.DNS_TTL, hostInfo);
+                    }
+                    this.jmDNSImpl.send(out, hostInfo);
+                }
             }
             else
             {
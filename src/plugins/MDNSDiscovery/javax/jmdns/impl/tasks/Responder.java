@@ -4,10 +4,14 @@
 
 package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,14 +22,23 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
+import plugins.MDNSDiscovery.javax.jmdns.impl.ResponseQueue;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
 /**
- * The Responder sends a single answer for the specified service infos
- * and for the host name.
+ * The Responder answers the queries received on an interface, see
+ * JmDNSImpl.scheduleResponse(). It runs when the first query is due, and
+ * answers all queries that are due by then at once: the answers
+ * owed to the multicast queries go out together, each answer once, in as
+ * few messages as they fit in. A query whose questions all ask for a
+ * unicast response (the QU bit) is answered directly to the querier. A
+ * query from another port gets a message of its own, with its questions.
  */
-public class Responder extends TimerTask
+public class Responder extends DNSTask
 {
     static Logger logger = Logger.getLogger(Responder.class.getName());
 
@@ -33,19 +46,18 @@ public class Responder extends TimerTask
      * 
      */
     private final JmDNSImpl jmDNSImpl;
-    private DNSIncoming in;
-    private InetAddress addr;
-    private int port;
+    private HostInfo hostInfo;
 
-    public Responder(JmDNSImpl jmDNSImpl, DNSIncoming in, InetAddress addr, int port)
+    public Responder(JmDNSImpl jmDNSImpl, HostInfo hostInfo)
     {
         this.jmDNSImpl = jmDNSImpl;
-        this.in = in;
-        this.addr = addr;
-        this.port = port;
+        this.hostInfo = hostInfo;
     }
 
-    public void start()
+    /**
+     * Returns how long to wait before answering a query, in milliseconds.
+     */
+    public static int getDelay(JmDNSImpl jmDNSImpl, DNSIncoming in, HostInfo hostInfo)
     {
         // According to draft-cheshire-dnsext-multicastdns.txt
         // chapter "8 Responding":
@@ -64,13 +76,13 @@ public class Responder extends TimerTask
             if (entry instanceof DNSQuestion)
             {
                 DNSQuestion q = (DNSQuestion) entry;
-                logger.finest("start() question=" + q);
+                logger.finest("getDelay() question=" + q);
                 iAmTheOnlyOne &= (q.getType() == DNSConstants.TYPE_SRV
                     || q.getType() == DNSConstants.TYPE_TXT
                     || q.getType() == DNSConstants.TYPE_A
                     || q.getType() == DNSConstants.TYPE_AAAA
-                    || this.jmDNSImpl.getLocalHost().getName().equalsIgnoreCase(q.getName())
-                    || this.jmDNSImpl.getServices().containsKey(q.getName().toLowerCase()));
+                    || hostInfo.getName().equalsIgnoreCase(q.getName())
+                    || jmDNSImpl.getServices().containsKey(q.getKey()));
                 if (!iAmTheOnlyOne)
                 {
                     break;
@@ -82,210 +94,302 @@ public class Responder extends TimerTask
         {
             delay = 0;
         }
-        logger.finest("start() Responder chosen delay=" + delay);
-        this.jmDNSImpl.schedule(this, delay);
+        logger.finest("getDelay() Responder chosen delay=" + delay);
+        return delay;
+    }
+
+    /**
+     * Schedules the responder to run at a given time.
+     */
+    public void start(DNSTaskScheduler scheduler, long time)
+    {
+        scheduler.schedule(this, Math.max(0, time - System.currentTimeMillis()));
     }
 
     public void run()
     {
         synchronized (this.jmDNSImpl.getIoLock())
         {
-            if (this.jmDNSImpl.getPlannedAnswer() == in)
+            final List queries = this.jmDNSImpl.pollResponses(hostInfo, System.currentTimeMillis());
+            for (Iterator i = queries.iterator(); i.hasNext();)
             {
-                this.jmDNSImpl.setPlannedAnswer(null);
+                if (this.jmDNSImpl.getPlannedAnswer() == ((ResponseQueue.Query) i.next()).getIncoming())
+                {
+                    this.jmDNSImpl.setPlannedAnswer(null);
+                }
             }
 
-            // We use these sets to prevent duplicate records
-            // FIXME - This should be moved into DNSOutgoing
-            HashSet questions = new HashSet();
-            HashSet answers = new HashSet();
-
-
             if (this.jmDNSImpl.getState() == DNSState.ANNOUNCED)
             {
                 try
                 {
-                    boolean isUnicast = (port != DNSConstants.MDNS_PORT);
-
-
-                    // Answer questions
-                    for (Iterator iterator = in.getQuestions().iterator(); iterator.hasNext();)
+                    // The records come from the host info, from the answers
+                    // of the service infos and from the list of service
+                    // types, and are shared, so duplicates are the same
+                    // instance
+                    AnswerList answers = new AnswerList();
+                    for (Iterator i = queries.iterator(); i.hasNext();)
                     {
-                        DNSEntry entry = (DNSEntry) iterator.next();
-                        if (entry instanceof DNSQuestion)
+                        ResponseQueue.Query query = (ResponseQueue.Query) i.next();
+                        DNSIncoming in = query.getIncoming();
+                        if (query.getPort() != DNSConstants.MDNS_PORT)
+                        {
+                            respond(in, query.getAddress(), query.getPort());
+                        }
+                        else if (in.isUnicastResponse() && (in.getSource() != null))
                         {
-                            DNSQuestion q = (DNSQuestion) entry;
+                            AnswerList unicast = new AnswerList();
+                            addAnswers(in, null, null, unicast);
+                            respond(unicast.records, new InetSocketAddress(in.getSource(), in.getPort()));
+                        }
+                        else
+                        {
+                            addAnswers(in, query, null, answers);
+                        }
+                    }
+                    respond(answers.records, null);
+                }
+                catch (Throwable e)
+                {
+                    logger.log(Level.WARNING, "run() exception ", e);
+                    this.jmDNSImpl.close();
+                }
+            }
+            this.jmDNSImpl.responderDone(this, hostInfo);
+        }
+    }
 
-                            // for unicast responses the question must be included
-                            if (isUnicast)
-                            {
-                                //out.addQuestion(q);
-                                questions.add(q);
-                            }
+    /**
+     * Sends answers to the multicast group, or to a single address if
+     * destination is not null, starting a new message whenever one is full.
+     */
+    private void respond(List answers, InetSocketAddress destination) throws IOException
+    {
+        if (answers.isEmpty())
+        {
+            return;
+        }
+        logger.finer("run() JmDNS responding");
+        DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+        for (Iterator i = answers.iterator(); i.hasNext();)
+        {
+            DNSRecord answer = (DNSRecord) i.next();
+            try
+            {
+                out.addAnswer(answer, 0);
+            }
+            catch (IOException e)
+            {
+                // the message is full
+                send(out, destination);
+                out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA);
+                out.addAnswer(answer, 0);
+            }
+        }
+        send(out, destination);
+    }
 
-                            int type = q.getType();
-                            if (type == DNSConstants.TYPE_ANY || type == DNSConstants.TYPE_SRV)
-                            { // I ama not sure of why there is a special case here [PJYF Oct 15 2004]
-                                if (this.jmDNSImpl.getLocalHost().getName().equalsIgnoreCase(q.getName()))
-                                {
-                                    // type = DNSConstants.TYPE_A;
-                                    DNSRecord answer = this.jmDNSImpl.getLocalHost().getDNS4AddressRecord();
-                                    if (answer != null)
-                                    {
-                                        answers.add(answer);
-                                    }
-                                    answer = this.jmDNSImpl.getLocalHost().getDNS6AddressRecord();
-                                    if (answer != null)
-                                    {
-                                        answers.add(answer);
-                                    }
-                                    type = DNSConstants.TYPE_IGNORE;
-                                }
-                                else
-                                {
-                                    if (this.jmDNSImpl.getServiceTypes().containsKey(q.getName().toLowerCase()))
-                                    {
-                                        type = DNSConstants.TYPE_PTR;
-                                    }
-                                }
-                            }
+    private void send(DNSOutgoing out, InetSocketAddress destination) throws IOException
+    {
+        if (destination != null)
+        {
+            this.jmDNSImpl.send(out, hostInfo, destination);
+        }
+        else
+        {
+            this.jmDNSImpl.send(out, hostInfo);
+        }
+    }
 
-                            switch (type)
-                            {
-                                case DNSConstants.TYPE_A:
-                                    {
-                                        // Answer a query for a domain name
-                                        //out = addAnswer( in, addr, port, out, host );
-                                        DNSRecord answer = this.jmDNSImpl.getLocalHost().getDNS4AddressRecord();
-                                        if (answer != null)
-                                        {
-                                            answers.add(answer);
-                                        }
-                                        break;
-                                    }
-                                case DNSConstants.TYPE_AAAA:
-                                    {
-                                        // Answer a query for a domain name
-                                        DNSRecord answer = this.jmDNSImpl.getLocalHost().getDNS6AddressRecord();
-                                        if (answer != null)
-                                        {
-                                            answers.add(answer);
-                                        }
-                                        break;
-                                    }
-                                case DNSConstants.TYPE_PTR:
-                                    {
-                                        // Answer a query for services of a given type
+    /**
+     * Answers a query from another port than the mDNS port, with a message
+     * of its own that includes the questions.
+     */
+    private void respond(DNSIncoming in, InetAddress addr, int port) throws IOException
+    {
+        List questions = new ArrayList();
+        AnswerList answers = new AnswerList();
+        addAnswers(in, null, questions, answers);
+        if (answers.records.size() != 0)
+        {
+            logger.finer("run() JmDNS responding");
+            DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA, false);
+            for (Iterator i = questions.iterator(); i.hasNext();)
+            {
+                out.addQuestion((DNSQuestion) i.next());
+            }
+            for (Iterator i = answers.records.iterator(); i.hasNext();)
+            {
+                out = this.jmDNSImpl.addAnswer(in, addr, port, out, (DNSRecord) i.next(), hostInfo);
+            }
+            this.jmDNSImpl.send(out, hostInfo);
+        }
+    }
 
-                                        // find matching services
-                                        for (Iterator serviceIterator = this.jmDNSImpl.getServices().values().iterator(); serviceIterator.hasNext();)
-                                        {
-                                            ServiceInfoImpl info = (ServiceInfoImpl) serviceIterator.next();
-                                            if (info.getState() == DNSState.ANNOUNCED)
-                                            {
-                                                if (q.getName().equalsIgnoreCase(info.getType()))
-                                                {
-                                                    DNSRecord answer = this.jmDNSImpl.getLocalHost().getDNS4AddressRecord();
-                                                    if (answer != null)
-                                                    {
-                                                        answers.add(answer);
-                                                    }
-                                                    answer = this.jmDNSImpl.getLocalHost().getDNS6AddressRecord();
-                                                    if (answer != null)
-                                                    {
-                                                        answers.add(answer);
-                                                    }
-                                                    answers.add(new DNSRecord.Pointer(info.getType(), DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, info.getQualifiedName()));
-                                                    answers.add(new DNSRecord.Service(info.getQualifiedName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN | DNSConstants.CLASS_UNIQUE, DNSConstants.DNS_TTL, 
-                                                            info.getPriority(), info.getWeight(), info.getPort(), this.jmDNSImpl.getLocalHost().getName()));
-                                                    answers.add(new DNSRecord.Text(info.getQualifiedName(), DNSConstants.TYPE_TXT, DNSConstants.CLASS_IN | DNSConstants.CLASS_UNIQUE, DNSConstants.DNS_TTL, 
-                                                            info.getText()));
-                                                }
-                                            }
-                                        }
-                                        if (q.getName().equalsIgnoreCase("_services._dns-sd._udp.local."))
-                                        {
-                                            for (Iterator serviceTypeIterator = this.jmDNSImpl.getServiceTypes().values().iterator(); serviceTypeIterator.hasNext();)
-                                            {
-                                                answers.add(new DNSRecord.Pointer("_services._dns-sd._udp.local.", DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, (String) serviceTypeIterator.next()));
-                                            }
-                                        }
-                                        break;
-                                    }
-                                case DNSConstants.TYPE_SRV:
-                                case DNSConstants.TYPE_ANY:
-                                case DNSConstants.TYPE_TXT:
-                                    {
-                                        ServiceInfoImpl info = (ServiceInfoImpl) this.jmDNSImpl.getServices().get(q.getName().toLowerCase());
-                                        if (info != null && info.getState() == DNSState.ANNOUNCED)
-                                        {
-                                            DNSRecord answer = this.jmDNSImpl.getLocalHost().getDNS4AddressRecord();
-                                            if (answer != null)
-                                            {
-                                                answers.add(answer);
-                                            }
-                                            answer = this.jmDNSImpl.getLocalHost().getDNS6AddressRecord();
-                                            if (answer != null)
-                                            {
-                                                answers.add(answer);
-                                            }
-                                            answers.add(new DNSRecord.Pointer(info.getType(), DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, info.getQualifiedName()));
-                                            answers.add(new DNSRecord.Service(info.getQualifiedName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN | DNSConstants.CLASS_UNIQUE, DNSConstants.DNS_TTL, 
-                                                    info.getPriority(), info.getWeight(), info.getPort(), this.jmDNSImpl.getLocalHost().getName()));
-                                            answers.add(new DNSRecord.Text(info.getQualifiedName(), DNSConstants.TYPE_TXT, DNSConstants.CLASS_IN | DNSConstants.CLASS_UNIQUE, DNSConstants.DNS_TTL, info.getText()));
-                                        }
-                                        break;
-                                    }
-                                default :
-                                    {
-                                        //System.out.println("JmDNSResponder.unhandled query:"+q);
-                                        break;
-                                    }
-                            }
-                        }
-                    }
+    /**
+     * Adds the answers owed to a query to the answers, see owe(). The
+     * questions are added too, unless questions is null.
+     *
+     * @param query
+     *      the query waiting in the response queue, for a multicast
+     *      response, or null.
+     */
+    private void addAnswers(DNSIncoming in, ResponseQueue.Query query, List questions, AnswerList answers)
+    {
+        // Answer questions
+        for (Iterator iterator = in.getQuestions().iterator(); iterator.hasNext();)
+        {
+            DNSEntry entry = (DNSEntry) iterator.next();
+            if (entry instanceof DNSQuestion)
+            {
+                DNSQuestion q = (DNSQuestion) entry;
 
+                // for unicast responses the question must be included
+                if (questions != null)
+                {
+                    //out.addQuestion(q);
+                    if (!questions.contains(q))
+                    {
+                        questions.add(q);
+                    }
+                }
 
-                    // remove known answers, if the ttl is at least half of
-                    // the correct value. (See Draft Cheshire chapter 7.1.).
-                    for (Iterator i = in.getAnswers().iterator(); i.hasNext();)
+                int type = q.getType();
+                if (type == DNSConstants.TYPE_ANY || type == DNSConstants.TYPE_SRV)
+                { // I ama not sure of why there is a special case here [PJYF Oct 15 2004]
+                    if (hostInfo.getName().equalsIgnoreCase(q.getName()))
                     {
-                        DNSRecord knownAnswer = (DNSRecord) i.next();
-                        if (knownAnswer.getTtl() > DNSConstants.DNS_TTL / 2 && answers.remove(knownAnswer))
+                        // type = DNSConstants.TYPE_A;
+                        owe(in, query, answers, hostInfo.getDNS4AddressRecord());
+                        owe(in, query, answers, hostInfo.getDNS6AddressRecord());
+                        type = DNSConstants.TYPE_IGNORE;
+                    }
+                    else
+                    {
+                        if (this.jmDNSImpl.getServiceTypes().containsKey(q.getKey()))
                         {
-                            logger.log(Level.FINER, "JmDNS Responder Known Answer Removed");
+                            type = DNSConstants.TYPE_PTR;
                         }
                     }
+                }
 
-
-                    // responde if we have answers
-                    if (answers.size() != 0)
-                    {
-                        logger.finer("run() JmDNS responding");
-                        DNSOutgoing out = null;
-                        if (isUnicast)
+                switch (type)
+                {
+                    case DNSConstants.TYPE_A:
+                        {
+                            // Answer a query for a domain name
+                            //out = addAnswer( in, addr, port, out, host );
+                            owe(in, query, answers, hostInfo.getDNS4AddressRecord());
+                            break;
+                        }
+                    case DNSConstants.TYPE_AAAA:
                         {
-                            out = new DNSOutgoing(DNSConstants.FLAGS_QR_RESPONSE | DNSConstants.FLAGS_AA, false);
+                            // Answer a query for a domain name
+                            owe(in, query, answers, hostInfo.getDNS6AddressRecord());
+                            break;
                         }
+                    case DNSConstants.TYPE_PTR:
+                        {
+                            // Answer a query for services of a given type
 
-                        for (Iterator i = questions.iterator(); i.hasNext();)
+                            // find matching services
+                            for (Iterator serviceIterator = this.jmDNSImpl.getServices().values().iterator(); serviceIterator.hasNext();)
+                            {
+                                ServiceInfoImpl info = (ServiceInfoImpl) serviceIterator.next();
+                                if (info.getState() == DNSState.ANNOUNCED)
+                                {
+                                    if (q.getName().equalsIgnoreCase(info.getType()))
+                                    {
+                                        addServiceAnswers(in, query, answers, info);
+                                    }
+                                }
+                            }
+                            if (q.getName().equalsIgnoreCase("_services._dns-sd._udp.local."))
+                            {
+                                for (Iterator serviceTypeIterator = this.jmDNSImpl.getServiceTypeAnswers().iterator(); serviceTypeIterator.hasNext();)
+                                {
+                                    owe(in, query, answers, (DNSRecord) serviceTypeIterator.next());
+                                }
+                            }
+                            break;
+                        }
+                    case DNSConstants.TYPE_SRV:
+                    case DNSConstants.TYPE_ANY:
+                    case DNSConstants.TYPE_TXT:
                         {
-                            out.addQuestion((DNSQuestion) i.next());
+                            ServiceInfoImpl info = (ServiceInfoImpl) this.jmDNSImpl.getServices().get(q.getKey());
+                            if (info != null && info.getState() == DNSState.ANNOUNCED)
+                            {
+                                addServiceAnswers(in, query, answers, info);
+                            }
+                            break;
                         }
-                        for (Iterator i = answers.iterator(); i.hasNext();)
+                    default :
                         {
-                            out = this.jmDNSImpl.addAnswer(in, addr, port, out, (DNSRecord) i.next());
+                            //System.out.println("JmDNSResponder.unhandled query:"+q);
+                            break;
                         }
-                        this.jmDNSImpl.send(out);
-                    }
-                    this.cancel();
-                }
-                catch (Throwable e)
-                {
-                    logger.log(Level.WARNING, "run() exception ", e);
-                    this.jmDNSImpl.close();
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Adds the records answering for a service to the answers: the shared
+     * PTR, SRV and TXT records of the service, and the addresses of the host.
+     */
+    private void addServiceAnswers(DNSIncoming in, ResponseQueue.Query query, AnswerList answers, ServiceInfoImpl info)
+    {
+        final ServiceInfoImpl.Answers shared = info.getAnswers(hostInfo);
+        owe(in, query, answers, hostInfo.getDNS4AddressRecord());
+        owe(in, query, answers, hostInfo.getDNS6AddressRecord());
+        owe(in, query, answers, shared.getPointer());
+        owe(in, query, answers, shared.getService());
+        owe(in, query, answers, shared.getText());
+    }
+
+    /**
+     * Adds a record owed to a query to the answers, unless it is null or
+     * the query does not need it: it is among the known answers of the
+     * query, with at least half the correct TTL (See Draft Cheshire chapter
+     * 7.1.), or another host multicast it while the query was waiting (RFC
+     * 6762, section 7.4). A record another query owes is still given.
+     */
+    private static void owe(DNSIncoming in, ResponseQueue.Query query, AnswerList answers, DNSRecord answer)
+    {
+        if (answer == null)
+        {
+            return;
+        }
+        if (in.isKnownAnswer(answer))
+        {
+            logger.log(Level.FINER, "JmDNS Responder Known Answer Removed");
+        }
+        else if ((query != null) && query.isAnswered(answer))
+        {
+            logger.log(Level.FINER, "JmDNS Responder Duplicate Answer Removed");
+        }
+        else
+        {
+            answers.add(answer);
+        }
+    }
+
+    /**
+     * The answers of a response, each record once. The records are shared
+     * instances, so duplicates are found by identity.
+     */
+    private static final class AnswerList
+    {
+        final List records = new ArrayList();
+        private final Map added = new IdentityHashMap();
+
+        void add(DNSRecord answer)
+        {
+            if (added.put(answer, answer) == null)
+            {
+                records.add(answer);
+            }
+        }
+    }
+}
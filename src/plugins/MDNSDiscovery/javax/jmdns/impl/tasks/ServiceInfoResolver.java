@@ -4,8 +4,10 @@
 
 package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,18 +16,21 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
 /**
  * The ServiceInfoResolver queries up to three times consecutively for
- * a service info, and then removes itself from the timer.
+ * a service info, and then removes itself from the scheduler.
  * <p/>
  * The ServiceInfoResolver will run only if JmDNS is in state ANNOUNCED.
  * REMIND: Prevent having multiple service resolvers for the same info in the
- * timer queue.
+ * scheduler.
  */
-public class ServiceInfoResolver extends TimerTask
+public class ServiceInfoResolver extends DNSTask
 {
     static Logger logger = Logger.getLogger(ServiceInfoResolver.class.getName());
 
@@ -47,9 +52,9 @@ public class ServiceInfoResolver extends TimerTask
         this.jmDNSImpl.addListener(info, new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_ANY, DNSConstants.CLASS_IN));
     }
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
-        timer.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
+        scheduler.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
     }
 
     public void run()
@@ -61,20 +66,48 @@ public class ServiceInfoResolver extends TimerTask
                 if (count++ < 3 && !info.hasData())
                 {
                     long now = System.currentTimeMillis();
-                    DNSOutgoing out = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
-                    out.addQuestion(new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN));
-                    out.addQuestion(new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_TXT, DNSConstants.CLASS_IN));
+                    // The first query asks for unicast answers, see RFC 6762,
+                    // section 5.4. The others ask for multicast answers, so
+                    // that the other hosts see them too.
+                    int clazz = DNSConstants.CLASS_IN | ((count == 1) ? DNSConstants.CLASS_UNICAST_RESPONSE : 0);
+                    List questions = new ArrayList();
+                    List known = new ArrayList();
+                    questions.add(new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_SRV, clazz));
+                    questions.add(new DNSQuestion(info.getQualifiedName(), DNSConstants.TYPE_TXT, clazz));
+                    known.add(this.jmDNSImpl.getCache().get(info.getQualifiedDNSName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN));
+                    known.add(this.jmDNSImpl.getCache().get(info.getQualifiedDNSName(), DNSConstants.TYPE_TXT, DNSConstants.CLASS_IN));
                     if (info.getServer() != null)
                     {
-                        out.addQuestion(new DNSQuestion(info.getServer(), DNSConstants.TYPE_A, DNSConstants.CLASS_IN));
+                        questions.add(new DNSQuestion(info.getServer(), DNSConstants.TYPE_A, clazz));
+                        questions.add(new DNSQuestion(info.getServer(), DNSConstants.TYPE_AAAA, clazz));
+                        known.add(this.jmDNSImpl.getCache().get(info.getServer(), DNSConstants.TYPE_A, DNSConstants.CLASS_IN));
+                        known.add(this.jmDNSImpl.getCache().get(info.getServer(), DNSConstants.TYPE_AAAA, DNSConstants.CLASS_IN));
                     }
-                    out.addAnswer((DNSRecord) this.jmDNSImpl.getCache().get(info.getQualifiedName(), DNSConstants.TYPE_SRV, DNSConstants.CLASS_IN), now);
-                    out.addAnswer((DNSRecord) this.jmDNSImpl.getCache().get(info.getQualifiedName(), DNSConstants.TYPE_TXT, DNSConstants.CLASS_IN), now);
-                    if (info.getServer() != null)
+                    known.removeAll(Collections.singleton(null));
+
+                    // Leave out the questions another host on the link just
+                    // asked, their answers are multicast
+                    for (Iterator h = this.jmDNSImpl.getHostInfos().iterator(); h.hasNext();)
                     {
-                        out.addAnswer((DNSRecord) this.jmDNSImpl.getCache().get(info.getServer(), DNSConstants.TYPE_A, DNSConstants.CLASS_IN), now);
+                        HostInfo hostInfo = (HostInfo) h.next();
+                        DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+                        for (Iterator i = questions.iterator(); i.hasNext();)
+                        {
+                            DNSQuestion question = (DNSQuestion) i.next();
+                            if (!this.jmDNSImpl.isDuplicateQuestion(hostInfo, question, known))
+                            {
+                                out.addQuestion(question);
+                            }
+                        }
+                        if (!out.isEmpty())
+                        {
+                            for (Iterator i = known.iterator(); i.hasNext();)
+                            {
+                                out.addAnswer((DNSRecord) i.next(), now);
+                            }
+                        }
+                        this.jmDNSImpl.send(out, hostInfo);
                     }
-                    this.jmDNSImpl.send(out);
                 }
                 else
                 {
@@ -5,9 +5,9 @@
 package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,18 +16,21 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 import plugins.MDNSDiscovery.javax.jmdns.impl.ServiceInfoImpl;
 
 /**
  * The ServiceResolver queries three times consecutively for services of
- * a given type, and then removes itself from the timer.
+ * a given type, and then removes itself from the scheduler.
  * <p/>
  * The ServiceResolver will run only if JmDNS is in state ANNOUNCED.
  * REMIND: Prevent having multiple service resolvers for the same type in the
- * timer queue.
+ * scheduler.
  */
-public class ServiceResolver extends TimerTask
+public class ServiceResolver extends DNSTask
 {
     static Logger logger = Logger.getLogger(ServiceResolver.class.getName());
 
@@ -47,9 +50,9 @@ public class ServiceResolver extends TimerTask
         this.type = type;
     }
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
-        timer.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
+        scheduler.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
     }
 
     public void run()
@@ -62,21 +65,42 @@ public class ServiceResolver extends TimerTask
                 {
                     logger.finer("run() JmDNS querying service");
                     long now = System.currentTimeMillis();
-                    DNSOutgoing out = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
-                    out.addQuestion(new DNSQuestion(type, DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN));
+                    // The first query asks for unicast answers, see RFC 6762,
+                    // section 5.4. The others ask for multicast answers, so
+                    // that the other hosts see them too.
+                    int clazz = DNSConstants.CLASS_IN | ((count == 1) ? DNSConstants.CLASS_UNICAST_RESPONSE : 0);
+                    DNSQuestion question = new DNSQuestion(type, DNSConstants.TYPE_PTR, clazz);
+                    List known = new ArrayList();
                     for (Iterator s = this.jmDNSImpl.getServices().values().iterator(); s.hasNext();)
                     {
                         final ServiceInfoImpl info = (ServiceInfoImpl) s.next();
-                        try
+                        known.add(new DNSRecord.Pointer(info.getType(), DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, info.getQualifiedName()));
+                    }
+                    for (Iterator h = this.jmDNSImpl.getHostInfos().iterator(); h.hasNext();)
+                    {
+                        HostInfo hostInfo = (HostInfo) h.next();
+                        if (this.jmDNSImpl.isDuplicateQuestion(hostInfo, question, known))
                         {
-                            out.addAnswer(new DNSRecord.Pointer(info.getType(), DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, info.getQualifiedName()), now);
+                            // Another host on the link just asked, its
+                            // answers are multicast
+                            logger.finer("run() JmDNS service query suppressed");
+                            continue;
                         }
-                        catch (IOException ee)
+                        DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+                        out.addQuestion(question);
+                        for (Iterator i = known.iterator(); i.hasNext();)
                         {
-                            break;
+                            try
+                            {
+                                out.addAnswer((DNSRecord) i.next(), now);
+                            }
+                            catch (IOException ee)
+                            {
+                                break;
+                            }
                         }
+                        this.jmDNSImpl.send(out, hostInfo);
                     }
-                    this.jmDNSImpl.send(out);
                 }
                 else
                 {
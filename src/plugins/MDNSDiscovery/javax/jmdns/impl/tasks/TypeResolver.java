@@ -4,9 +4,9 @@
 
 package plugins.MDNSDiscovery.javax.jmdns.impl.tasks;
 
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,17 +15,20 @@ import plugins.MDNSDiscovery.javax.jmdns.impl.DNSOutgoing;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSQuestion;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSRecord;
 import plugins.MDNSDiscovery.javax.jmdns.impl.DNSState;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTask;
+import plugins.MDNSDiscovery.javax.jmdns.impl.DNSTaskScheduler;
+import plugins.MDNSDiscovery.javax.jmdns.impl.HostInfo;
 import plugins.MDNSDiscovery.javax.jmdns.impl.JmDNSImpl;
 
 /**
  * Helper class to resolve service types.
  * <p/>
  * The TypeResolver queries three times consecutively for service types, and then
- * removes itself from the timer.
+ * removes itself from the scheduler.
  * <p/>
  * The TypeResolver will run only if JmDNS is in state ANNOUNCED.
  */
-public class TypeResolver extends TimerTask
+public class TypeResolver extends DNSTask
 {
     static Logger logger = Logger.getLogger(TypeResolver.class.getName());
 
@@ -42,9 +45,9 @@ public class TypeResolver extends TimerTask
         this.jmDNSImpl = jmDNSImpl;
     }
 
-    public void start(Timer timer)
+    public void start(DNSTaskScheduler scheduler)
     {
-        timer.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
+        scheduler.schedule(this, DNSConstants.QUERY_WAIT_INTERVAL, DNSConstants.QUERY_WAIT_INTERVAL);
     }
 
     /**
@@ -61,13 +64,30 @@ public class TypeResolver extends TimerTask
                 if (count++ < 3)
                 {
                     logger.finer("run() JmDNS querying type");
-                    DNSOutgoing out = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
-                    out.addQuestion(new DNSQuestion("_services._dns-sd._udp.local.", DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN));
+                    DNSQuestion question = new DNSQuestion("_services._dns-sd._udp.local.", DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN);
+                    List known = new ArrayList();
                     for (Iterator iterator = this.jmDNSImpl.getServiceTypes().values().iterator(); iterator.hasNext();)
                     {
-                        out.addAnswer(new DNSRecord.Pointer("_services._dns-sd._udp.local.", DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, (String) iterator.next()), 0);
+                        known.add(new DNSRecord.Pointer("_services._dns-sd._udp.local.", DNSConstants.TYPE_PTR, DNSConstants.CLASS_IN, DNSConstants.DNS_TTL, (String) iterator.next()));
+                    }
+                    for (Iterator h = this.jmDNSImpl.getHostInfos().iterator(); h.hasNext();)
+                    {
+                        HostInfo hostInfo = (HostInfo) h.next();
+                        if (this.jmDNSImpl.isDuplicateQuestion(hostInfo, question, known))
+                        {
+                            // Another host on the link just asked, its
+                            // answers are multicast
+                            logger.finer("run() JmDNS type query suppressed");
+                            continue;
+                        }
+                        DNSOutgoing out = this.jmDNSImpl.createOutgoing(DNSConstants.FLAGS_QR_QUERY);
+                        out.addQuestion(question);
+                        for (Iterator iterator = known.iterator(); iterator.hasNext();)
+                        {
+                            out.addAnswer((DNSRecord) iterator.next(), 0);
+                        }
+                        this.jmDNSImpl.send(out, hostInfo);
                     }
-                    this.jmDNSImpl.send(out);
                 }
                 else
                 {